@@ -0,0 +1,196 @@
+/*
+ * Copyright 2013 Luis Rodero-Merino.
+ * 
+ * This file is part of Annan.
+ * 
+ * Annan is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Annan is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Annan.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package org.anann.core;
+
+import java.util.Arrays;
+
+import org.anann.core.events.Event;
+import org.anann.core.events.EventHandler;
+
+/**
+ * Used by the simulator to fire, in order, the events for the same handler of a batch of simultaneous
+ * events in deterministic mode (see {@link Simulator#setDeterministic(boolean)}), or of a window in window
+ * mode (see {@link Simulator#setLookahead(long)}). The slot keeps the operations on the events holder
+ * (schedule, cancel, reschedule) that the handlers ask for while the events are fired. Once the whole
+ * batch is fired, the simulator commits the operations, either slot by slot (see {@link #commit(Simulator)})
+ * or event by event in the order of the batch (see {@link #commitNext(Simulator)}).
+ * Slots are reused from batch to batch, so they create no objects once their buffers are big enough.
+ */
+class BatchSlot implements EventHandler {
+    
+    private static final int SCHEDULE = 0;
+    private static final int SCHEDULE_COMPACT = 1;
+    private static final int RESCHEDULE = 2;
+    private static final int CANCEL = 3;
+    
+    // Event given to the dispatcher, firing it fires the target event
+    private final Event slotEvent = new Event(0, 0, this, 0);
+    private final ThreadLocal<BatchSlot> firingSlot;
+    // Events to fire, and firing time of the one being fired
+    private Event[] targets = new Event[1];
+    private int targetsCount = 0;
+    private long time = 0;
+    // Targets fired, and number of operations buffered once each of them was fired
+    private int firedCount = 0;
+    private int[] targetEnds = new int[1];
+    // Targets and operations already committed by commitNext()
+    private int committedTargets = 0;
+    private int committedOperations = 0;
+    
+    // Operations buffered, in the order they were requested
+    private int operationsCount = 0;
+    private int[] kinds = new int[4];
+    private Event[] events = new Event[4];
+    private long[] times = new long[4];
+    private int[] codes = new int[4];
+    private int[] handlerIds = new int[4];
+    private int[] priorities = new int[4];
+    
+    BatchSlot(ThreadLocal<BatchSlot> firingSlot) {
+        this.firingSlot = firingSlot;
+    }
+    
+    Event prepare(Event target) {
+        targetsCount = 0;
+        addTarget(target);
+        return slotEvent;
+    }
+    
+    void addTarget(Event target) {
+        if(targetsCount == targets.length) {
+            targets = Arrays.copyOf(targets, targetsCount * 2);
+            targetEnds = Arrays.copyOf(targetEnds, targetsCount * 2);
+        }
+        targets[targetsCount++] = target;
+    }
+    
+    Event getSlotEvent() {
+        return slotEvent;
+    }
+    
+    long time() {
+        return time;
+    }
+
+    @Override
+    public void newEvent(Event event) {
+        firingSlot.set(this);
+        try {
+            for(int i = 0; i < targetsCount; i++) {
+                time = targets[i].getFiringTime();
+                targets[i].fireEvent();
+                targetEnds[i] = operationsCount;
+                firedCount = i + 1;
+            }
+        } finally {
+            firingSlot.set(null);
+        }
+    }
+    
+    void schedule(Event event) {
+        buffer(SCHEDULE, event, 0);
+    }
+    
+    void schedule(long firingTime, int code, int handlerId, int priority) {
+        int index = buffer(SCHEDULE_COMPACT, null, firingTime);
+        codes[index] = code;
+        handlerIds[index] = handlerId;
+        priorities[index] = priority;
+    }
+    
+    void reschedule(Event event, long newFiringTime) {
+        buffer(RESCHEDULE, event, newFiringTime);
+    }
+    
+    void cancel(Event event) {
+        buffer(CANCEL, event, 0);
+    }
+    
+    private int buffer(int kind, Event event, long time) {
+        int index = operationsCount;
+        if(index == kinds.length) {
+            int length = index * 2;
+            kinds = Arrays.copyOf(kinds, length);
+            events = Arrays.copyOf(events, length);
+            times = Arrays.copyOf(times, length);
+            codes = Arrays.copyOf(codes, length);
+            handlerIds = Arrays.copyOf(handlerIds, length);
+            priorities = Arrays.copyOf(priorities, length);
+        }
+        kinds[index] = kind;
+        events[index] = event;
+        times[index] = time;
+        operationsCount = index + 1;
+        return index;
+    }
+    
+    /**
+     * Runs the buffered operations on the simulator and empties the slot.
+     */
+    void commit(Simulator simulator) {
+        run(simulator, 0, operationsCount);
+        reset();
+    }
+    
+    /**
+     * Runs the buffered operations of the next target not committed yet, and empties the slot once all
+     * targets are committed. So the simulator can commit the operations of several slots in the order
+     * their targets have in the batch. If some target failed, the operations of the targets from it on
+     * are run with it.
+     */
+    void commitNext(Simulator simulator) {
+        int end = (committedTargets < firedCount) ? targetEnds[committedTargets] : operationsCount;
+        run(simulator, committedOperations, end);
+        committedOperations = end;
+        if(++committedTargets >= targetsCount)
+            reset();
+    }
+    
+    private void reset() {
+        Arrays.fill(targets, 0, targetsCount, null);
+        targetsCount = 0;
+        firedCount = 0;
+        committedTargets = 0;
+        committedOperations = 0;
+        operationsCount = 0;
+    }
+    
+    private void run(Simulator simulator, int from, int to) {
+        for(int i = from; i < to; i++) {
+            switch(kinds[i]) {
+            case SCHEDULE:
+                simulator.addToHolder(events[i]);
+                break;
+            case SCHEDULE_COMPACT:
+                simulator.addToHolder(times[i], codes[i], handlerIds[i], priorities[i]);
+                break;
+            case RESCHEDULE:
+                simulator.rescheduleInHolder(events[i], times[i]);
+                break;
+            case CANCEL:
+                simulator.removeFromHolder(events[i]);
+                break;
+            }
+            events[i] = null;
+        }
+    }
+
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2013 Luis Rodero-Merino.
+ * 
+ * This file is part of Annan.
+ * 
+ * Annan is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Annan is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Annan.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+
+package org.anann.core;
+
+import java.util.Arrays;
+
+import org.anann.core.events.Event;
+import org.anann.core.events.holder.EventsHolder;
+
+/**
+ * Events scheduled for the present simulation time, kept apart from the events holder by
+ * {@link Simulator#runSerial()} so they are taken in constant time. It is a circular array sorted
+ * by decreasing priority, events with the same priority are kept in the order they were added.
+ * As a new event is placed before the last ones only if it has greater priority, adding takes
+ * constant time when events of the same instant share their priority.
+ */
+class CurrentTimeLane {
+    
+    // Capacity is always a power of two, so positions are computed with a mask
+    private Event[] events = new Event[16];
+    private int head = 0;
+    private int size = 0;
+    
+    void add(Event event) {
+        if(size == events.length)
+            grow();
+        int mask = events.length - 1;
+        int index = size;
+        while((index > 0) && (events[(head + index - 1) & mask].getPriority() < event.getPriority())) {
+            events[(head + index) & mask] = events[(head + index - 1) & mask];
+            index--;
+        }
+        events[(head + index) & mask] = event;
+        size++;
+    }
+    
+    Event peek() {
+        return (size == 0) ? null : events[head];
+    }
+    
+    Event poll() {
+        if(size == 0)
+            return null;
+        Event event = events[head];
+        events[head] = null;
+        head = (head + 1) & (events.length - 1);
+        size--;
+        return event;
+    }
+    
+    /**
+     * @return {@code true} if the event was in the lane. Takes linear time, but the lane is usually short.
+     */
+    boolean remove(Event event) {
+        int mask = events.length - 1;
+        for(int index = 0; index < size; index++) {
+            if(events[(head + index) & mask] != event)
+                continue;
+            for(int i = index; i < size - 1; i++)
+                events[(head + i) & mask] = events[(head + i + 1) & mask];
+            events[(head + size - 1) & mask] = null;
+            size--;
+            return true;
+        }
+        return false;
+    }
+    
+    boolean isEmpty() {
+        return size == 0;
+    }
+    
+    /**
+     * Moves all events to the holder.
+     */
+    void drainTo(EventsHolder eventsHolder) {
+        while(size > 0)
+            eventsHolder.add(poll());
+    }
+    
+    void clear() {
+        Arrays.fill(events, null);
+        head = 0;
+        size = 0;
+    }
+    
+    private void grow() {
+        Event[] newEvents = new Event[events.length * 2];
+        int firstPart = Math.min(size, events.length - head);
+        System.arraycopy(events, head, newEvents, 0, firstPart);
+        System.arraycopy(events, 0, newEvents, firstPart, size - firstPart);
+        events = newEvents;
+        head = 0;
+    }
+
+}
@@ -20,11 +20,10 @@
 
 package org.anann.core;
 
-import java.util.ArrayList;
-import java.util.List;
-
 import org.anann.core.events.Event;
 import org.anann.core.events.EventHandler;
+import org.anann.core.queue.EventsQueue;
+import org.anann.core.queue.FifoEventsQueue;
 
 public abstract class Entity implements EventHandler {
     
@@ -32,8 +31,7 @@ public abstract class Entity implements EventHandler {
     private static final int TASK_FINISHED_EVENT_PRIORITY = Integer.MAX_VALUE;
     
     // Events waiting to be processed by this entity
-    // TODO: Check whether a LinkedList could be more efficient (probably will!)
-    private List<Event> waitingEvents = new ArrayList<Event>(); 
+    private EventsQueue waitingEvents = new FifoEventsQueue();
     private boolean busy = false;
     private Event taskFinishedEvent = new Event(0, TASK_FINISHED_EVENT_CODE, this, TASK_FINISHED_EVENT_PRIORITY);
 
@@ -41,6 +39,46 @@ public abstract class Entity implements EventHandler {
     protected String name = null;
     protected Simulator simulator = null;
     
+    public Simulator getSimulator() {
+        return simulator;
+    }
+    
+    /**
+     * Sets the queue where events wait while the entity is busy, and so the queueing discipline.
+     * By default events are queued in a {@link FifoEventsQueue}.
+     * @param waitingEvents
+     */
+    protected void setEventsQueue(EventsQueue waitingEvents) {
+        if(waitingEvents == null)
+            throw new IllegalArgumentException("Cannot set a null events queue to entity " + name);
+        if(!this.waitingEvents.isEmpty())
+            throw new IllegalStateException("Cannot change the events queue of entity " + name + ", there are events waiting");
+        this.waitingEvents = waitingEvents;
+    }
+    
+    protected EventsQueue getEventsQueue() {
+        return waitingEvents;
+    }
+    
+    /**
+     * Saves the state kept by this class (busy state and waiting events), for simulators that must be able
+     * to go back in time (see {@link org.anann.core.pdes.TimeWarpSimulation}). The state of subclasses
+     * is saved through {@link org.anann.core.pdes.Snapshotable}.
+     * @return The state, to be passed to {@link #restoreEntityState(Object)}.
+     */
+    public Object saveEntityState() {
+        return busy ? waitingEvents.copy() : null;
+    }
+    
+    public void restoreEntityState(Object state) {
+        busy = (state != null);
+        // The state is copied again, as it can be restored more than once
+        if(busy)
+            waitingEvents = ((EventsQueue)state).copy();
+        else
+            waitingEvents.clear();
+    }
+    
     @Override
     public void newEvent(Event event) {
         
@@ -53,44 +91,31 @@ public abstract class Entity implements EventHandler {
                 busy = false;
                 return;
             }
-            long processingTime = processEvent(waitingEvents.remove(0));
+            Event waitingEvent = waitingEvents.poll();
+            long processingTime = processEvent(waitingEvent);
+            waitingEvent.release();
             if(processingTime > 0) {
-                taskFinishedEvent.recycle(simulator.time() + processingTime, taskFinishedEvent.getCode(), this, TASK_FINISHED_EVENT_PRIORITY);
+                // The task finished event has just been fired, so it is not in the holder
+                taskFinishedEvent.setFiringTime(simulator.time() + processingTime);
                 simulator.schedule(taskFinishedEvent);
             }
             return;
         }
         
         if(busy) {
-            if(!waitingEvents.isEmpty()) {
-                // Checking last enqueued event time is not greater than the new one
-                // (for the sake of consistency).
-                Event lastEvent = waitingEvents.get(waitingEvents.size()-1);
-                if(lastEvent.getFiringTime() > event.getFiringTime())
-                    throw new IllegalStateException("An event with time " + event.getFiringTime() + " reached entity " + name + ", but the last" +
-                                                    " event enqueued for that entitiy was assigned a greater time " + lastEvent.getFiringTime());
-            }
-            // New event must be added at the end, unless last events
-            // have the same firing time and a lesser priority.
-            // (we assume that events, with high probability, will be scheduled for a time later than
-            // the last event in the waiting events queue. If we didn't, we would be using a HashSet
-            // or something like that)
-            int insertAt = waitingEvents.size();
-            while(insertAt > 0) {
-                Event enqueuedEvent = waitingEvents.get(insertAt-1);
-                if((enqueuedEvent.getFiringTime() == event.getFiringTime()) && (enqueuedEvent.getPriority() > event.getPriority()))
-                    insertAt--;
-                else
-                    break;
+            if(!waitingEvents.offer(event)) {
+                eventDropped(event);
+                return;
             }
-            waitingEvents.add(insertAt, event);
+            // Pooled events are released once fired, so the event must be retained while waiting
+            event.retain();
             return;
         }
 
         busy = true;
         long processingTime = processEvent(event);
         if(processingTime > 0) {
-            taskFinishedEvent.recycle(simulator.time() + processingTime, taskFinishedEvent.getCode(), this, TASK_FINISHED_EVENT_PRIORITY);
+            taskFinishedEvent.setFiringTime(simulator.time() + processingTime);
             simulator.schedule(taskFinishedEvent);
         }
     }
@@ -101,5 +126,13 @@ public abstract class Entity implements EventHandler {
      * forcing new events to be enqueued.
      */
     protected abstract long processEvent(Event event);
+    
+    /**
+     * Called when an event arrives while the entity is busy and its events queue refuses it
+     * (see {@link org.anann.core.queue.BoundedEventsQueue}). The event is discarded afterwards.
+     * @param event
+     */
+    protected void eventDropped(Event event) {
+    }
 
 }
\ No newline at end of file
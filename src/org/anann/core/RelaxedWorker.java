@@ -0,0 +1,124 @@
+/*
+ * Copyright 2013 Luis Rodero-Merino.
+ * 
+ * This file is part of Annan.
+ * 
+ * Annan is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Annan is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Annan.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package org.anann.core;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.anann.core.events.Event;
+import org.anann.core.events.holder.RelaxedEventsHolder;
+
+/**
+ * Thread of the relaxed mode of the simulator (see {@link Simulator#setRelaxed(int, long)}). Each worker
+ * takes events from the holder and fires them, as long as they are no later than the skew bound after the
+ * earliest event that could still be fired: the first event in the holder, or the events other workers are
+ * firing (as they can schedule new events at their own time). As the holder and the other workers change
+ * while this is checked, the bound is not strict, so the skew actually observed is measured.
+ * The run ends when the count of pending events (those in the holder plus those being fired, as only
+ * these can schedule more) drops to zero. Events past the end time are kept apart by the worker that
+ * took them, so they no longer count, and are added back to the holder by the simulator after the run.
+ */
+class RelaxedWorker implements Runnable {
+    
+    static final long IDLE = Long.MAX_VALUE;
+    
+    private final Simulator simulator;
+    private final RelaxedEventsHolder eventsHolder;
+    private final long skewBound;
+    private final long endTime;
+    private final RelaxedWorker[] workers;
+    // Latest firing time of all events fired by all workers
+    private final AtomicLong latestFired;
+    // Events in the holder plus events being fired, shared with the simulator that counts those scheduled
+    private final AtomicLong pending;
+    // Events taken that are past the end time
+    final List<Event> parked = new ArrayList<Event>();
+    // Time of the event being fired, IDLE if none. While taking an event, a lower bound of its time.
+    volatile long time = IDLE;
+    
+    // Statistics
+    long inversions = 0;
+    long maxSkew = 0;
+    
+    RelaxedWorker(Simulator simulator, RelaxedEventsHolder eventsHolder, long skewBound, long endTime,
+                  RelaxedWorker[] workers, AtomicLong latestFired, AtomicLong pending) {
+        this.simulator = simulator;
+        this.eventsHolder = eventsHolder;
+        this.skewBound = skewBound;
+        this.endTime = endTime;
+        this.workers = workers;
+        this.latestFired = latestFired;
+        this.pending = pending;
+    }
+
+    @Override
+    public void run() {
+        while(!simulator.isStopped()) {
+            time = eventsHolder.lowerBound();
+            Event event = eventsHolder.nextRelaxed();
+            if(event == null) {
+                time = IDLE;
+                // Finished once no events are left to be taken nor being fired
+                if(pending.get() == 0)
+                    return;
+                Thread.yield();
+                continue;
+            }
+            if(event.getFiringTime() > endTime) {
+                parked.add(event);
+                pending.decrementAndGet();
+                continue;
+            }
+            long earliest = Math.min(eventsHolder.lowerBound(), othersEarliest());
+            if((earliest < IDLE - skewBound) && (event.getFiringTime() > earliest + skewBound)) {
+                eventsHolder.add(event);
+                Thread.yield();
+                continue;
+            }
+            time = event.getFiringTime();
+            record(time);
+            event.fireEvent();
+            time = IDLE;
+            // Events it scheduled were counted before, so the count cannot drop to zero while some are left
+            pending.decrementAndGet();
+        }
+    }
+    
+    private void record(long firingTime) {
+        long latest = latestFired.get();
+        while((firingTime > latest) && !latestFired.compareAndSet(latest, firingTime))
+            latest = latestFired.get();
+        if(firingTime < latest) {
+            inversions++;
+            maxSkew = Math.max(maxSkew, latest - firingTime);
+        }
+    }
+    
+    private long othersEarliest() {
+        long earliest = IDLE;
+        for(RelaxedWorker worker: workers)
+            if(worker != this)
+                earliest = Math.min(earliest, worker.time);
+        return earliest;
+    }
+    
+}
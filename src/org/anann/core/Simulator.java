@@ -20,20 +20,39 @@
 
 package org.anann.core;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.SortedSet;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.anann.core.events.Event;
+import org.anann.core.events.EventHandler;
+import org.anann.core.events.EventsPool;
+import org.anann.core.events.dispatcher.BatchEventsDispatcher;
 import org.anann.core.events.dispatcher.EventsDispatcher;
 import org.anann.core.events.dispatcher.ParallelEventsDispatcher;
 import org.anann.core.events.dispatcher.SerialEventDispatcher;
+import org.anann.core.events.holder.BatchEventsHolder;
+import org.anann.core.events.holder.CompactEventsHolder;
 import org.anann.core.events.holder.EventsHolder;
+import org.anann.core.events.holder.MonotoneEventsHolder;
+import org.anann.core.events.holder.RelaxedEventsHolder;
+import org.anann.core.events.holder.SimultaneousEvents;
+import org.anann.core.events.source.EventSource;
 
 /**
  * This class assumes that only one thread will run the simulation at all times,
  * so no synchronization is required either here or in the events holder regarding
  * events. However, we synchronize some methods to avoid potential issues.
+ * When events are dispatched in parallel, handlers scheduling or cancelling events must
+ * synchronize among them, unless the events holder is a
+ * {@link org.anann.core.events.holder.ConcurrentEventsHolder}, or the simulator runs in
+ * deterministic mode (see {@link #setDeterministic(boolean)}) or window mode (see {@link #setLookahead(long)}).
  * @author lrodero
  *
  */
@@ -42,23 +61,58 @@ public class Simulator {
     private Set<SimulationObserver> observers = new HashSet<SimulationObserver>();
     protected long maxSimDuration = -1;
     private long simTime = 0;
-    private boolean keepRunning = true;
+    private volatile boolean keepRunning = true;
     protected boolean running = false;
     private EventsHolder eventsHolder = null;
     private EventsDispatcher eventsDispatcher = null;
+    private boolean monotone = false;
+    private boolean deterministic = false;
+    private long lookahead = 0;
+    // In deterministic or window mode, slot of the events being fired by each thread (null if none)
+    private final ThreadLocal<BatchSlot> firingSlot = new ThreadLocal<BatchSlot>();
+    // In window mode, end of the window being run
+    private long windowEnd = 0;
+    // In window and deterministic modes, slot of each handler in the window or batch being run
+    private final Map<EventHandler, BatchSlot> windowSlots = new IdentityHashMap<EventHandler, BatchSlot>();
+    // Relaxed mode, disabled if no threads
+    private int relaxedThreads = 0;
+    private long skewBound = 0;
+    private final ThreadLocal<RelaxedWorker> relaxedWorker = new ThreadLocal<RelaxedWorker>();
+    private volatile Throwable relaxedFailure = null;
+    // During relaxed runs, events in the holder plus events being fired (see RelaxedWorker)
+    private volatile boolean relaxedActive = false;
+    private final AtomicLong relaxedPending = new AtomicLong();
+    private long inversions = 0;
+    private long maxSkew = 0;
+    private BatchSlot[] batchSlots = new BatchSlot[0];
+    // In deterministic mode, slot of each event of the batch
+    private BatchSlot[] batchOrder = new BatchSlot[0];
+    private final SimultaneousEvents slotEvents = new SimultaneousEvents();
+    // Reused by the parallel loop to take each group of simultaneous events
+    private final SimultaneousEvents batch = new SimultaneousEvents();
+    private EventsPool eventsPool = new EventsPool();
+    // Events scheduled for the present time while running serially, active only during runSerial()
+    private boolean currentTimeLaneEnabled = true;
+    private boolean laneActive = false;
+    private final CurrentTimeLane lane = new CurrentTimeLane();
+    // Drivers of the sources added that are not exhausted yet
+    private final List<SourceDriver> sources = new ArrayList<SourceDriver>();
     
     public Simulator(EventsHolder eventsHolder) {
         this(eventsHolder, true);
     }
     
     public Simulator(EventsHolder eventsHolder, boolean sequential) {
+        this(eventsHolder, sequential ? new SerialEventDispatcher() : new ParallelEventsDispatcher());
+    }
+    
+    public Simulator(EventsHolder eventsHolder, EventsDispatcher eventsDispatcher) {
         if(eventsHolder == null)
             throw new IllegalArgumentException("Cannot create a simulator with a null events holder");
+        if(eventsDispatcher == null)
+            throw new IllegalArgumentException("Cannot create a simulator with a null events dispatcher");
         this.eventsHolder = eventsHolder;
-        if(sequential)
-            this.eventsDispatcher = new SerialEventDispatcher();
-        else
-            this.eventsDispatcher = new ParallelEventsDispatcher();
+        this.eventsDispatcher = eventsDispatcher;
     }
 
     public synchronized boolean registerSimObserver(SimulationObserver observer) {
@@ -69,7 +123,165 @@ public class Simulator {
         return observers.remove(observer);
     }
 
+    /**
+     * Declares whether events are never scheduled 'before' the event being run, i.e. no event is ever
+     * scheduled for the present time with a higher priority than the present event. Note that events
+     * in the past are always rejected by {@link #schedule(Event)}, regardless of this setting.
+     * If the events holder is a {@link MonotoneEventsHolder} it is told so, and it can drop its checks.
+     * @param monotone
+     */
+    public synchronized void setMonotone(boolean monotone) {
+        if(running)
+            throw new IllegalStateException("Cannot change monotonicity of a simulator while it is running");
+        this.monotone = monotone;
+        if(eventsHolder instanceof MonotoneEventsHolder)
+            ((MonotoneEventsHolder)eventsHolder).setMonotone(monotone);
+    }
+    
+    public boolean isMonotone() {
+        return monotone;
+    }
+    
+    /**
+     * Sets whether, when events are run serially, events scheduled for the present time are kept
+     * apart from the events holder in a lane where they are added and taken in constant time
+     * (enabled by default). Events still run in the order set by {@link Event#ORDERER}: each time,
+     * the next event of the lane is compared with the next event in the holder. Events in the lane
+     * run after the events in the holder with the same firing time and priority, and in the same
+     * order they were scheduled among them. The lane is never used with a {@link CompactEventsHolder},
+     * as these build a new event object on each {@link EventsHolder#peek()} call.
+     * @param enabled
+     */
+    public synchronized void setCurrentTimeLane(boolean enabled) {
+        if(running)
+            throw new IllegalStateException("Cannot enable or disable the current time lane of a simulator while it is running");
+        currentTimeLaneEnabled = enabled;
+    }
+    
+    public boolean isCurrentTimeLane() {
+        return currentTimeLaneEnabled;
+    }
+
+    /**
+     * Sets whether parallel runs must be deterministic. If so, the schedule, reschedule and cancel
+     * calls made by the events of a batch of simultaneous events are not passed to the events holder
+     * straight away. Instead, they are kept apart for each handler (with no locking, as the events of the
+     * batch for the same handler are all fired in order by one thread), and once the whole batch has been fired they are passed to the holder in the order
+     * of the events in the batch and, for each event, in the order they were made. So the events
+     * holder is changed exactly as in a serial run, no matter how the events were spread among
+     * threads, and handlers need no synchronization to schedule events even if the holder is not
+     * thread safe.
+     * <p>
+     * The result of a parallel run is then the same as that of a serial run, as long as the events holder
+     * returns simultaneous events in a deterministic order (e.g. the order they were added, as
+     * {@link org.anann.core.events.holder.EHBasedOnIndexedHeap} does) and simultaneous events do not
+     * depend on each other, nor cancel events of their own batch (those events have already been taken
+     * from the holder). This setting has no effect in serial runs.
+     * <p>
+     * Dispatchers get a proxy event for each event handler in the batch, that fires the events of that
+     * handler in the order they have in the batch. So handlers that are not thread safe (such as
+     * {@link Entity}) are never run by two threads at once, but dispatchers that look at the event handler
+     * (e.g. {@link org.anann.core.events.dispatcher.PersistentPoolEventsDispatcher} in affinity mode)
+     * see the proxy handler instead of the real one.
+     * @param deterministic
+     */
+    public synchronized void setDeterministic(boolean deterministic) {
+        if(running)
+            throw new IllegalStateException("Cannot change determinism of a simulator while it is running");
+        this.deterministic = deterministic;
+    }
+    
+    public boolean isDeterministic() {
+        return deterministic;
+    }
+    
+    /**
+     * Sets the window mode for parallel runs (YAWNS). With a positive lookahead, instead of batches of
+     * simultaneous events, the simulator takes all the events in the window {@code [t, t + lookahead)}, where
+     * {@code t} is the time of the next event, and dispatches them in parallel grouped by handler: the events
+     * of each handler are fired in order by the same thread. Once the whole window has been run, the next
+     * one starts.
+     * <p>
+     * This is only correct if no event schedules another one earlier than its own time plus the lookahead
+     * (which would fall in the window being run), so scheduling or rescheduling an event inside the present
+     * window fails with an {@link IllegalArgumentException}. Events cannot be cancelled once their window
+     * starts. As in deterministic mode (see {@link #setDeterministic(boolean)}), operations on the events holder
+     * are kept by each group and committed at the end of the window in order, so no synchronization is needed
+     * and the run is deterministic. Events with no handler (those calling a method) are fired each one on its
+     * own, so they could run in parallel with other events for the same object.
+     * While an event is fired, {@link #time()} returns the firing time of that event.
+     * This setting has no effect in serial runs.
+     * @param lookahead Minimum delay of events scheduled, 0 to disable window mode.
+     */
+    public synchronized void setLookahead(long lookahead) {
+        if(running)
+            throw new IllegalStateException("Cannot change lookahead of a simulator while it is running");
+        if(lookahead < 0)
+            throw new IllegalArgumentException("Lookahead cannot be negative");
+        this.lookahead = lookahead;
+    }
+    
+    public long getLookahead() {
+        return lookahead;
+    }
+
+    /**
+     * Sets the relaxed mode, where events are fired by several threads out of order, as long as each one is
+     * no later than the skew bound after the earliest event that could still be fired. So the results are not
+     * exact, but events are not waited for. The events holder must be a {@link RelaxedEventsHolder} (such as
+     * {@link org.anann.core.events.holder.EHBasedOnMultiQueue}), which threads share to schedule events with no
+     * further synchronization, event handlers must be thread safe though. The events dispatcher is not used.
+     * <p>
+     * The skew bound is not strictly guaranteed, as the earliest event can change while it is checked. The
+     * error is measured instead: after a relaxed run, {@link #getInversions()} tells how many events were fired
+     * after a later one, and {@link #getMaxSkew()} how much later.
+     * While an event is fired, {@link #time()} returns the firing time of that event.
+     * @param threads Threads firing events (including the one running the simulation), 0 to disable relaxed mode.
+     * @param skewBound
+     */
+    public synchronized void setRelaxed(int threads, long skewBound) {
+        if(running)
+            throw new IllegalStateException("Cannot change relaxed mode of a simulator while it is running");
+        if((threads < 0) || (skewBound < 0))
+            throw new IllegalArgumentException("Number of threads and skew bound cannot be negative");
+        if((threads > 0) && !(eventsHolder instanceof RelaxedEventsHolder))
+            throw new IllegalStateException("Relaxed mode needs an events holder implementing " + RelaxedEventsHolder.class.getName() +
+                                            ", but " + eventsHolder.getClass().getName() + " does not");
+        this.relaxedThreads = threads;
+        this.skewBound = skewBound;
+    }
+    
+    public boolean isRelaxed() {
+        return relaxedThreads > 0;
+    }
+    
+    /**
+     * @return Events fired, in the last relaxed run, after some event with a later firing time.
+     */
+    public long getInversions() {
+        return inversions;
+    }
+    
+    /**
+     * @return Maximum difference, in the last relaxed run, between the firing time of an event and the
+     * latest firing time of the events fired before it.
+     */
+    public long getMaxSkew() {
+        return maxSkew;
+    }
+
     public long time() {
+        // In window and relaxed modes, each thread is at the time of the event it is firing
+        if(lookahead > 0) {
+            BatchSlot slot = firingSlot.get();
+            if(slot != null)
+                return slot.time();
+        }
+        if(relaxedThreads > 0) {
+            RelaxedWorker worker = relaxedWorker.get();
+            if(worker != null)
+                return worker.time;
+        }
         return simTime;
     }
     
@@ -80,22 +292,225 @@ public class Simulator {
         maxSimDuration = -1;
         simTime = 0;
         keepRunning = true;
+        lane.clear();
         eventsHolder.clear();
+        closeSources();
+    }
+
+    public synchronized void setEventsPool(EventsPool eventsPool) {
+        if(running)
+            throw new IllegalStateException("Cannot change the events pool of a simulator while it is running");
+        if(eventsPool == null)
+            throw new IllegalArgumentException("Cannot set a null events pool");
+        this.eventsPool = eventsPool;
+    }
+    
+    /**
+     * Gets an event from the simulator {@link EventsPool}. The event goes back to the pool
+     * automatically once it is scheduled and fired, unless it is retained (see {@link Event#retain()}).
+     * @param firingTime
+     * @param code
+     * @param eventHandler
+     * @param priority
+     * @return
+     */
+    public Event newEvent(long firingTime, int code, EventHandler eventHandler, int priority) {
+        return eventsPool.acquire(firingTime, code, eventHandler, priority);
     }
 
     public void schedule(Event event) {
         if(event == null)
             throw new IllegalArgumentException("Cannot program null events in simulation");
-        if(event.getFiringTime() < simTime)
+        long time = time();
+        if(event.getFiringTime() < time)
             throw new IllegalArgumentException("Cannot program an event for the past! Event was to be fired at " +
-                                               event.getFiringTime() + " but simulation time is " + simTime);
-        eventsHolder.add(event);
+                                               event.getFiringTime() + " but simulation time is " + time);
+        BatchSlot slot = currentSlot();
+        checkWindow(event.getFiringTime(), slot);
+        // Pooled events are retained while scheduled, they are released when fired
+        event.retain();
+        if(slot != null)
+            slot.schedule(event);
+        else
+            addToHolder(event);
+    }
+    
+    void addToHolder(Event event) {
+        if(laneActive && (event.getFiringTime() == simTime))
+            lane.add(event);
+        else {
+            if(relaxedActive)
+                relaxedPending.incrementAndGet();
+            eventsHolder.add(event);
+        }
+    }
+    
+    private BatchSlot currentSlot() {
+        return (deterministic || (lookahead > 0)) ? firingSlot.get() : null;
+    }
+    
+    private void checkWindow(long firingTime, BatchSlot slot) {
+        if((slot != null) && (lookahead > 0) && (firingTime < windowEnd))
+            throw new IllegalArgumentException("Event to be fired at " + firingTime + " falls in the present window, which ends at " +
+                                               windowEnd + " (lookahead is " + lookahead + ")");
+    }
+
+    /**
+     * Adds a source of events, whose events are read one at a time as the simulation runs, instead
+     * of all being scheduled in advance (see {@link EventSource}). So only one event of each source
+     * is in the events holder at any time. The source is closed once it is exhausted, or else when the
+     * simulator is reset or {@link #closeSources()} is called. Sources stay open when a run ends before
+     * they are exhausted (e.g. because of the max simulation duration), so a later run goes on reading them.
+     * In window mode (see {@link #setLookahead(long)}) the next event of the source is scheduled while
+     * the previous one is being fired, so consecutive events of the source must be separated by at least
+     * the lookahead; otherwise the run fails as when any event schedules another inside the present window.
+     * @param source
+     */
+    public void addSource(EventSource source) {
+        if(source == null)
+            throw new IllegalArgumentException("Cannot add a null events source");
+        SourceDriver driver = new SourceDriver(this, source);
+        synchronized(sources) {
+            sources.add(driver);
+        }
+        driver.pull();
+    }
+    
+    // Called by drivers once their source is exhausted, and closed
+    void sourceExhausted(SourceDriver driver) {
+        synchronized(sources) {
+            sources.remove(driver);
+        }
+    }
+    
+    /**
+     * Closes the sources added that are not exhausted yet. Their events not read yet are never fired.
+     */
+    public void closeSources() {
+        synchronized(sources) {
+            for(SourceDriver driver: sources)
+                driver.close();
+            sources.clear();
+        }
+    }
+
+    /**
+     * Registers an event handler for compact events, see {@link #schedule(long, int, int, int)}.
+     * @param eventHandler
+     * @return The id of the handler.
+     */
+    public int registerHandler(EventHandler eventHandler) {
+        return compactEventsHolder().registerHandler(eventHandler);
+    }
+
+    /**
+     * Schedules an event without creating any {@link Event} instance for it, which is only
+     * created when the event is fired. This needs the events holder to be a {@link CompactEventsHolder}.
+     * Events scheduled this way cannot be cancelled nor rescheduled.
+     * @param firingTime
+     * @param code
+     * @param handlerId Id of the handler, as returned by {@link #registerHandler(EventHandler)}.
+     * @param priority
+     */
+    public void schedule(long firingTime, int code, int handlerId, int priority) {
+        long time = time();
+        if(firingTime < time)
+            throw new IllegalArgumentException("Cannot program an event for the past! Event was to be fired at " +
+                                               firingTime + " but simulation time is " + time);
+        CompactEventsHolder compactEventsHolder = compactEventsHolder();
+        BatchSlot slot = currentSlot();
+        checkWindow(firingTime, slot);
+        if(slot != null)
+            slot.schedule(firingTime, code, handlerId, priority);
+        else
+            addToHolder(firingTime, code, handlerId, priority);
+    }
+    
+    void addToHolder(long firingTime, int code, int handlerId, int priority) {
+        if(relaxedActive)
+            relaxedPending.incrementAndGet();
+        compactEventsHolder().add(firingTime, code, handlerId, priority);
+    }
+    
+    private CompactEventsHolder compactEventsHolder() {
+        if(!(eventsHolder instanceof CompactEventsHolder))
+            throw new IllegalStateException("Compact events need an events holder implementing " + CompactEventsHolder.class.getName() +
+                                            ", but " + eventsHolder.getClass().getName() + " does not");
+        return (CompactEventsHolder)eventsHolder;
+    }
+
+    /**
+     * Moves an event to a new firing time. If the event is already scheduled, it is moved in place
+     * by the events holder (which for some holders, such as
+     * {@link org.anann.core.events.holder.EHBasedOnIndexedHeap}, is much cheaper than cancelling
+     * and scheduling it again). Otherwise it is scheduled at the new time. Holders that cannot tell
+     * whether they store an event must look for it first, so events known not to be scheduled (e.g.
+     * an event being fired) should be set their new time and passed to {@link #schedule(Event)} instead.
+     * @param event
+     * @param newFiringTime
+     */
+    public void reschedule(Event event, long newFiringTime) {
+        if(event == null)
+            throw new IllegalArgumentException("Cannot reschedule a null event");
+        long time = time();
+        if(newFiringTime < time)
+            throw new IllegalArgumentException("Cannot reschedule an event to the past! Event was to be fired at " +
+                                               newFiringTime + " but simulation time is " + time);
+        if(event.isPooled())
+            event.checkNotReleased();
+        BatchSlot slot = currentSlot();
+        checkWindow(newFiringTime, slot);
+        if(slot != null)
+            slot.reschedule(event, newFiringTime);
+        else
+            rescheduleInHolder(event, newFiringTime);
+    }
+    
+    void rescheduleInHolder(Event event, long newFiringTime) {
+        if(laneActive) {
+            if(lane.remove(event)) {
+                event.setFiringTime(newFiringTime);
+                addToHolder(event);
+                return;
+            }
+            if(newFiringTime == simTime) {
+                boolean scheduled = eventsHolder.remove(event);
+                event.setFiringTime(newFiringTime);
+                lane.add(event);
+                if(!scheduled)
+                    event.retain();
+                return;
+            }
+        }
+        // Counted beforehand, in case the holder adds it as it was not scheduled
+        if(relaxedActive)
+            relaxedPending.incrementAndGet();
+        if(eventsHolder.reschedule(event, newFiringTime)) {
+            if(relaxedActive)
+                relaxedPending.decrementAndGet();
+        } else
+            event.retain();
     }
 
     public void cancel(Event event) {
         if(event == null)
             throw new IllegalArgumentException("Cannot cancel a null event");
-        eventsHolder.remove(event);
+        BatchSlot slot = currentSlot();
+        if(slot != null)
+            slot.cancel(event);
+        else
+            removeFromHolder(event);
+    }
+    
+    void removeFromHolder(Event event) {
+        // Pooled events are released when cancelled, so they must be retained to be scheduled again
+        if(laneActive && lane.remove(event))
+            event.release();
+        else if(eventsHolder.remove(event)) {
+            if(relaxedActive)
+                relaxedPending.decrementAndGet();
+            event.release();
+        }
     }
     
     public void start(long maxSimDuration) {
@@ -126,43 +541,308 @@ public class Simulator {
     }
 
     protected void run() {
-        if(eventsDispatcher.isSerial())
+        if(relaxedThreads > 0)
+            runRelaxed();
+        else if(eventsDispatcher.isSerial())
             runSerial();
         else
             runParallel();
     }
     
     protected void runSerial() {
+        // Compact holders materialize a new event on each peek, which the lane would do once per event
+        laneActive = currentTimeLaneEnabled && !(eventsHolder instanceof CompactEventsHolder);
+        try {
+            while(keepRunning) {
+                // Events in the lane are all for the present time, so they can be taken straight away
+                // unless the holder has some event for the present time with greater priority
+                if(!lane.isEmpty()) {
+                    Event inHolder = eventsHolder.peek();
+                    if((inHolder == null) || (Event.ORDERER.compare(lane.peek(), inHolder) < 0)) {
+                        eventsDispatcher.dispatch(lane.poll());
+                        continue;
+                    }
+                }
+                if(beyondMaxDuration())
+                    return;
+                Event event = eventsHolder.next();
+                if(event == null)
+                    return;
+                if(event.getFiringTime() < simTime)
+                    throw new IllegalStateException("The events holder has returned an event in the past! Simulation time is " +
+                                                    simTime + ", event time is " + event.getFiringTime());
+                simTime = event.getFiringTime();
+                eventsDispatcher.dispatch(event);
+            }
+        } finally {
+            // Events left in the lane (e.g. if the simulation was stopped) go back to the holder
+            laneActive = false;
+            lane.drainTo(eventsHolder);
+        }
+    }
+    
+    /**
+     * Fires, in order, the events to be fired before the given time, or until the simulator is stopped.
+     * Used by simulators that must not go beyond some time, such as logical processes of a parallel simulation
+     * (see {@link org.anann.core.pdes.ConservativeSimulation}).
+     * @param time
+     * @return Number of events fired.
+     */
+    protected int runSerialBefore(long time) {
+        int fired = 0;
+        while(keepRunning && (fireNextBefore(time) != null))
+            fired++;
+        return fired;
+    }
+    
+    /**
+     * Fires the next event, if it is to be fired before the given time.
+     * @param time
+     * @return The event fired, or {@code null} if there was none before that time.
+     */
+    protected Event fireNextBefore(long time) {
+        Event event = eventsHolder.peek();
+        if((event == null) || (event.getFiringTime() >= time))
+            return null;
+        eventsHolder.next();
+        simTime = event.getFiringTime();
+        eventsDispatcher.dispatch(event);
+        return event;
+    }
+    
+    /**
+     * @return Firing time of the next event, or {@link Long#MAX_VALUE} if there are no events left.
+     */
+    protected long nextEventTime() {
+        Event event = eventsHolder.peek();
+        return (event == null) ? Long.MAX_VALUE : event.getFiringTime();
+    }
+    
+    protected boolean isStopped() {
+        return !keepRunning;
+    }
+    
+    protected void runParallel() {
+        if(lookahead > 0) {
+            runWindows();
+            return;
+        }
         while(keepRunning) {
-            Event event = eventsHolder.next();
-            if(event == null)
+            if(beyondMaxDuration() || !nextBatch())
                 return;
+            if(batch.isEmpty())
+                throw new IllegalStateException("The events holder has returned an empty list of simultaneous events");
+            Event event = batch.get(0);
             if(event.getFiringTime() < simTime)
                 throw new IllegalStateException("The events holder has returned an event in the past! Simulation time is " +
                                                 simTime + ", event time is " + event.getFiringTime());
             simTime = event.getFiringTime();
-            if((maxSimDuration > 0) && (simTime > maxSimDuration))
-                return;                
-            eventsDispatcher.dispatch(event);
+            try {
+                if(deterministic)
+                    dispatchDeterministic();
+                else
+                    dispatchBatch(batch);
+            } finally {
+                batch.clear();
+            }
+        }    
+    }
+    
+    /**
+     * Whether the next event goes beyond the max simulation duration, if any. The event is only peeked,
+     * so it is kept in the holder (and in its place among simultaneous events) and a later run fires it.
+     */
+    private boolean beyondMaxDuration() {
+        if(maxSimDuration <= 0)
+            return false;
+        Event next = eventsHolder.peek();
+        return (next != null) && (next.getFiringTime() > maxSimDuration);
+    }
+    
+    /**
+     * Takes the next simultaneous events into the reusable batch. Holders that are not
+     * {@link BatchEventsHolder} create a new set each time, which is copied into the batch.
+     * @return {@code false} if there are no events left.
+     */
+    private boolean nextBatch() {
+        if(eventsHolder instanceof BatchEventsHolder)
+            return ((BatchEventsHolder)eventsHolder).nextSimultaneous(batch) > 0;
+        batch.clear();
+        SortedSet<Event> simultaneousEvents = eventsHolder.nextSimultaneous();
+        if(simultaneousEvents == null)
+            return false;
+        for(Event event: simultaneousEvents)
+            batch.addEvent(event);
+        return true;
+    }
+    
+    /**
+     * Dispatchers that are not {@link BatchEventsDispatcher} get the batch as a collection.
+     */
+    private void dispatchBatch(SimultaneousEvents events) {
+        if(eventsDispatcher instanceof BatchEventsDispatcher)
+            ((BatchEventsDispatcher)eventsDispatcher).dispatch(events);
+        else
+            eventsDispatcher.dispatch(events);
+    }
+    
+    /**
+     * Events of the same handler go to the same slot, as in window mode, but operations are committed
+     * in the order of the events in the batch.
+     */
+    private void dispatchDeterministic() {
+        int size = batch.size();
+        if(batchOrder.length < size)
+            batchOrder = new BatchSlot[Math.max(16, size * 2)];
+        int slots = 0;
+        for(int i = 0; i < size; i++) {
+            Event event = batch.get(i);
+            EventHandler eventHandler = event.getEventHandler();
+            BatchSlot slot = (eventHandler == null) ? null : windowSlots.get(eventHandler);
+            if(slot != null) {
+                slot.addTarget(event);
+            } else {
+                slot = batchSlot(slots++);
+                slotEvents.addEvent(slot.prepare(event));
+                if(eventHandler != null)
+                    windowSlots.put(eventHandler, slot);
+            }
+            batchOrder[i] = slot;
+        }
+        windowSlots.clear();
+        try {
+            dispatchBatch(slotEvents);
+        } finally {
+            slotEvents.clear();
+            for(int i = 0; i < size; i++) {
+                batchOrder[i].commitNext(this);
+                batchOrder[i] = null;
+            }
         }
     }
     
-    protected void runParallel() {
+    protected void runWindows() {
         while(keepRunning) {
-            SortedSet<Event> simultaneousEvents = eventsHolder.nextSimultaneous();
-            if(simultaneousEvents == null)
+            Event event = eventsHolder.peek();
+            if(event == null)
                 return;
-            if(simultaneousEvents.isEmpty())
-                throw new IllegalStateException("The events holder has returned an empty list of simultaneous events");
-            Event event = simultaneousEvents.first();
             if(event.getFiringTime() < simTime)
                 throw new IllegalStateException("The events holder has returned an event in the past! Simulation time is " +
                                                 simTime + ", event time is " + event.getFiringTime());
             simTime = event.getFiringTime();
             if((maxSimDuration > 0) && (simTime > maxSimDuration))
-                return;                
-            eventsDispatcher.dispatch(simultaneousEvents);
-        }    
+                return;
+            windowEnd = (simTime > Long.MAX_VALUE - lookahead) ? Long.MAX_VALUE : simTime + lookahead;
+            if(maxSimDuration > 0)
+                windowEnd = Math.min(windowEnd, maxSimDuration + 1);
+            int size = 0;
+            while((event != null) && (event.getFiringTime() < windowEnd)) {
+                eventsHolder.next();
+                EventHandler eventHandler = event.getEventHandler();
+                BatchSlot slot = (eventHandler == null) ? null : windowSlots.get(eventHandler);
+                if(slot != null) {
+                    slot.addTarget(event);
+                } else {
+                    slot = batchSlot(size++);
+                    slotEvents.addEvent(slot.prepare(event));
+                    if(eventHandler != null)
+                        windowSlots.put(eventHandler, slot);
+                }
+                simTime = event.getFiringTime();
+                event = eventsHolder.peek();
+            }
+            windowSlots.clear();
+            dispatchSlots(size);
+        }
+    }
+    
+    protected void runRelaxed() {
+        long endTime = (maxSimDuration > 0) ? maxSimDuration : Long.MAX_VALUE;
+        AtomicLong latestFired = new AtomicLong(simTime);
+        RelaxedWorker[] workers = new RelaxedWorker[relaxedThreads];
+        for(int i = 0; i < workers.length; i++)
+            workers[i] = new RelaxedWorker(this, (RelaxedEventsHolder)eventsHolder, skewBound, endTime, workers, latestFired, relaxedPending);
+        relaxedPending.set(eventsHolder.size());
+        relaxedActive = true;
+        try {
+            Thread[] threads = new Thread[workers.length - 1];
+            for(int i = 0; i < threads.length; i++) {
+                threads[i] = new Thread(relaxedRunnable(workers[i + 1]), "SIM-RELAXED-" + (i + 1));
+                threads[i].start();
+            }
+            relaxedRunnable(workers[0]).run();
+            for(Thread thread: threads) {
+                try {
+                    thread.join();
+                } catch (InterruptedException exception) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while waiting for relaxed mode threads", exception);
+                }
+            }
+        } finally {
+            relaxedActive = false;
+        }
+        // Events past the end time stay scheduled for a later run
+        for(RelaxedWorker worker: workers) {
+            for(Event event: worker.parked)
+                eventsHolder.add(event);
+            worker.parked.clear();
+        }
+        inversions = 0;
+        maxSkew = 0;
+        for(RelaxedWorker worker: workers) {
+            inversions += worker.inversions;
+            maxSkew = Math.max(maxSkew, worker.maxSkew);
+        }
+        simTime = latestFired.get();
+        Throwable throwable = relaxedFailure;
+        if(throwable != null) {
+            relaxedFailure = null;
+            if(throwable instanceof RuntimeException)
+                throw (RuntimeException)throwable;
+            if(throwable instanceof Error)
+                throw (Error)throwable;
+            throw new IllegalStateException("Some event failed when fired in relaxed mode", throwable);
+        }
+    }
+    
+    private Runnable relaxedRunnable(final RelaxedWorker worker) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                relaxedWorker.set(worker);
+                try {
+                    worker.run();
+                } catch (Throwable throwable) {
+                    if(relaxedFailure == null)
+                        relaxedFailure = throwable;
+                    stop();
+                } finally {
+                    worker.time = RelaxedWorker.IDLE;
+                    relaxedWorker.remove();
+                }
+            }
+        };
+    }
+    
+    private BatchSlot batchSlot(int index) {
+        if(index == batchSlots.length) {
+            batchSlots = Arrays.copyOf(batchSlots, Math.max(16, index * 2));
+            for(int i = index; i < batchSlots.length; i++)
+                batchSlots[i] = new BatchSlot(firingSlot);
+        }
+        return batchSlots[index];
+    }
+    
+    // Slot events all have the same time and priority, so they are a batch of simultaneous events
+    private void dispatchSlots(int size) {
+        try {
+            dispatchBatch(slotEvents);
+        } finally {
+            slotEvents.clear();
+            for(int i = 0; i < size; i++)
+                batchSlots[i].commit(this);
+        }
     }
 
 }
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2013 Luis Rodero-Merino.
+ * 
+ * This file is part of Annan.
+ * 
+ * Annan is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Annan is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Annan.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+
+package org.anann.core;
+
+import org.anann.core.events.Event;
+import org.anann.core.events.EventHandler;
+import org.anann.core.events.source.EventSource;
+
+/**
+ * Reads the events of an {@link EventSource} one at a time. Only a proxy event, with the firing
+ * time and priority of the next event of the source, is kept in the events holder. When the proxy
+ * is fired the next event is read and the proxy scheduled for it, and then the event read before is
+ * fired. So events of the source run at their time and priority, only their order with respect to other
+ * events with the same firing time and priority can differ from scheduling them all in advance.
+ * Once closed, the source is not read again, and the event already read (if any) is the last one fired.
+ */
+class SourceDriver implements EventHandler {
+    
+    private final Simulator simulator;
+    private final EventSource source;
+    private Event proxy = null;
+    private Event pending = null;
+    private boolean closed = false;
+    
+    SourceDriver(Simulator simulator, EventSource source) {
+        this.simulator = simulator;
+        this.source = source;
+    }
+    
+    void pull() {
+        if(closed) {
+            pending = null;
+            return;
+        }
+        pending = source.next(simulator);
+        if(pending == null) {
+            close();
+            simulator.sourceExhausted(this);
+            return;
+        }
+        if(proxy == null)
+            proxy = new Event(pending.getFiringTime(), pending.getCode(), this, pending.getPriority());
+        else
+            proxy.recycle(pending.getFiringTime(), pending.getCode(), this, pending.getPriority());
+        simulator.schedule(proxy);
+    }
+
+    @Override
+    public void newEvent(Event event) {
+        if(event != proxy)
+            throw new IllegalStateException("An event that is not its proxy reached the driver of source " + source);
+        Event fired = pending;
+        pull();
+        // The event was never scheduled, so it is retained here as the simulator would have done
+        fired.retain();
+        fired.fireEvent();
+    }
+    
+    void close() {
+        if(closed)
+            return;
+        closed = true;
+        source.close();
+    }
+
+}
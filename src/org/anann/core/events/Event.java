@@ -20,9 +20,14 @@
 
 package org.anann.core.events;
 
-import java.lang.reflect.InvocationTargetException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 public class Event {
 
@@ -34,6 +39,10 @@ public class Event {
     public static final int RESERVED_EVENT_CODES_RANGE_MIN = 11100;
     public static final int RESERVED_EVENT_CODES_RANGE_MAX = RESERVED_EVENT_CODES_RANGE_MIN + 100;
     
+    // Method handles of the methods invoked by events, shared by all events calling the same method
+    private static final ConcurrentMap<Method, MethodHandle> METHOD_HANDLES = new ConcurrentHashMap<Method, MethodHandle>();
+    private static final MethodType METHOD_HANDLE_TYPE = MethodType.methodType(void.class, Object.class, Event.class);
+    
     // Event firing time
     private long firingTime = 0;   
 
@@ -51,9 +60,22 @@ public class Event {
     private EventHandler eventHandler = null;
     
     // Method to invoke when the event is fired. Only used if eventHandler == null.
+    // The method is called through its handle, adapted to (Object, Event)void, which
+    // unlike Method.invoke does not need to allocate an array of arguments in each call.
     private Method methodToInvoke = null;
+    private MethodHandle methodHandle = null;
     private Object objectToCall = null;
     
+    // Position of this event in the events holder, only used by holders that need
+    // to locate their events quickly (e.g. EHBasedOnIndexedHeap). -1 if not set.
+    private int holderIndex = -1;
+    
+    // Pool this event was taken from, null if it was not obtained from a pool (see EventsPool)
+    EventsPool pool = null;
+    int references = 0;
+    boolean released = false;
+    Throwable releaseTrace = null;
+    
     public Event(long firingTime, int code, EventHandler eventHandler, int priority){
         if(firingTime < 0)
             throw new Error("Trying to create an event to be triggered at a negative time");
@@ -73,11 +95,33 @@ public class Event {
         if(objectToCall == null)
             throw new Error("Trying to create an event with a null Object to call");
         this.firingTime = firingTime;
+        this.code = code;
         this.methodToInvoke = methodToInvoke;
+        this.methodHandle = methodHandle(methodToInvoke);
         this.objectToCall = objectToCall;
         this.priority = priority;
     }
     
+    private static MethodHandle methodHandle(Method method) {
+        MethodHandle handle = METHOD_HANDLES.get(method);
+        if(handle != null)
+            return handle;
+        Class<?>[] parameterTypes = method.getParameterTypes();
+        if((parameterTypes.length != 1) || !parameterTypes[0].isAssignableFrom(Event.class))
+            throw new Error("Method " + method.getName() + " cannot be called by events, the method must accept SimulationEvent as the first (and only) argument");
+        try {
+            handle = MethodHandles.lookup().unreflect(method);
+        } catch (IllegalAccessException exception) {
+            throw new Error("IllegalAccessException caught when looking up method " + method.getName() + ", the method can not be accessed by the simulator", exception);
+        }
+        // Static methods do not need the object to call, but the handle must accept it anyway
+        if(Modifier.isStatic(method.getModifiers()))
+            handle = MethodHandles.dropArguments(handle, 0, Object.class);
+        handle = handle.asType(METHOD_HANDLE_TYPE);
+        METHOD_HANDLES.putIfAbsent(method, handle);
+        return handle;
+    }
+    
     public void recycle(long firingTime, int code, EventHandler eventHandler, int priority){
         if(firingTime < 0)
             throw new Error("Trying to recicle an event to be triggered at a negative time");
@@ -89,6 +133,18 @@ public class Event {
         this.priority = priority;
     }
     
+    /**
+     * Changes the firing time of the event. This must never be called while the event is
+     * stored in an events holder, as it would break the holder ordering. Use
+     * {@link org.anann.core.Simulator#reschedule(Event, long)} to move a scheduled event instead.
+     * @param firingTime
+     */
+    public void setFiringTime(long firingTime){
+        if(firingTime < 0)
+            throw new Error("Trying to set a negative firing time to an event");
+        this.firingTime = firingTime;
+    }
+    
     public long getFiringTime(){
         return firingTime;
     }
@@ -105,23 +161,71 @@ public class Event {
         return eventHandler;
     }
     
+    public int getHolderIndex() {
+        return holderIndex;
+    }
+    
+    public void setHolderIndex(int holderIndex) {
+        this.holderIndex = holderIndex;
+    }
+    
+    public boolean isPooled() {
+        return pool != null;
+    }
+    
+    /**
+     * Tells the pool this event was taken from that it must not be reused until {@link #release()} is
+     * called. Does nothing if the event was not obtained from an {@link EventsPool}.
+     */
+    public void retain() {
+        if(pool == null)
+            return;
+        checkNotReleased();
+        references++;
+    }
+    
+    /**
+     * Releases a reference to this event, when no references are left the event goes back to its pool.
+     * Does nothing if the event was not obtained from an {@link EventsPool}.
+     */
+    public void release() {
+        if(pool == null)
+            return;
+        checkNotReleased();
+        if(--references <= 0)
+            pool.release(this);
+    }
+    
+    public void checkNotReleased() {
+        if(released)
+            throw new IllegalStateException("Trying to use an event already released to its pool" +
+                                            ((releaseTrace == null) ? "" : " (see cause for where it was released)"), releaseTrace);
+    }
+    
     public boolean isSimultaneous(Event event) {
         return (ORDERER.compare(this, event) == 0);
     }
     
+    /**
+     * If the event was obtained from an {@link EventsPool}, it is released once fired (see {@link #release()}).
+     */
     public void fireEvent(){
+        if(pool != null)
+            checkNotReleased();
         if(eventHandler != null)
             eventHandler.newEvent(this);
         else
             try {
-                methodToInvoke.invoke(objectToCall, new Object[]{this});
-            } catch (IllegalArgumentException exception) {
-                throw new Error("IllegalArgumentException caught when invoking method " + methodToInvoke.getName() + ", the method must accept SimulationEvent as the first (and only) argument", exception);
-            } catch (IllegalAccessException exception) {
-                throw new Error("IllegalAccessException caught when invoking method " + methodToInvoke.getName() + ", the method can not be accessed by the simulator", exception);
-            } catch (InvocationTargetException exception) {
-                throw new Error("InvocationTargetException caught when invoking method " + methodToInvoke.getName() + ", the method thrown some exception", exception);
+                methodHandle.invokeExact(objectToCall, this);
+            } catch (RuntimeException exception) {
+                throw exception;
+            } catch (Error error) {
+                throw error;
+            } catch (Throwable throwable) {
+                throw new Error("Checked exception caught when invoking method " + methodToInvoke.getName() + ", the method thrown some exception", throwable);
             }
+        if(pool != null)
+            release();
     }
 
 }
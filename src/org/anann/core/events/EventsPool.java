@@ -0,0 +1,98 @@
+/*
+ * Copyright 2013 Luis Rodero-Merino.
+ * 
+ * This file is part of Annan.
+ * 
+ * Annan is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Annan is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Annan.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package org.anann.core.events;
+
+import java.util.ArrayDeque;
+
+/**
+ * Pool of reusable {@link Event} instances. Each thread gets and releases events from its own
+ * pool, so no synchronization is needed even when events are fired from several threads (e.g. by
+ * {@link org.anann.core.events.dispatcher.ParallelEventsDispatcher}).
+ * <p>
+ * Pooled events are reference counted (see {@link Event#retain()} and {@link Event#release()}).
+ * Scheduling an event in the simulator retains it, and firing it releases it, so events that are
+ * just scheduled and fired go back to the pool automatically once {@link Event#fireEvent()} returns.
+ * Handlers that keep a reference to the event after that (as {@link org.anann.core.Entity} does
+ * with its waiting events) must retain it, and release it once they are done.
+ * <p>
+ * In debug mode, released events are never reused, and the point where they were released is
+ * recorded, so any later attempt to schedule, fire, retain or release them fails with an
+ * {@link IllegalStateException} telling where the event was released.
+ */
+public class EventsPool {
+    
+    public static final int DEFAULT_MAX_EVENTS_PER_THREAD = 4096;
+    
+    private final int maxEventsPerThread;
+    private final boolean debug;
+    
+    private final ThreadLocal<ArrayDeque<Event>> pools = new ThreadLocal<ArrayDeque<Event>>() {
+        @Override
+        protected ArrayDeque<Event> initialValue() {
+            return new ArrayDeque<Event>();
+        }
+    };
+    
+    public EventsPool() {
+        this(DEFAULT_MAX_EVENTS_PER_THREAD, false);
+    }
+    
+    /**
+     * @param maxEventsPerThread Maximum number of free events kept by each thread, events released
+     * when the thread pool is full are left to the garbage collector.
+     * @param debug
+     */
+    public EventsPool(int maxEventsPerThread, boolean debug) {
+        if(maxEventsPerThread < 0)
+            throw new IllegalArgumentException("Maximum number of events per thread cannot be negative");
+        this.maxEventsPerThread = maxEventsPerThread;
+        this.debug = debug;
+    }
+    
+    public boolean isDebug() {
+        return debug;
+    }
+    
+    public Event acquire(long firingTime, int code, EventHandler eventHandler, int priority) {
+        Event event = pools.get().pollLast();
+        if(event == null) {
+            event = new Event(firingTime, code, eventHandler, priority);
+            event.pool = this;
+        } else {
+            event.recycle(firingTime, code, eventHandler, priority);
+        }
+        event.references = 0;
+        event.released = false;
+        return event;
+    }
+    
+    void release(Event event) {
+        event.released = true;
+        if(debug) {
+            event.releaseTrace = new Throwable("Event released to its pool here");
+            return;
+        }
+        ArrayDeque<Event> pool = pools.get();
+        if(pool.size() < maxEventsPerThread)
+            pool.addLast(event);
+    }
+
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2013 Luis Rodero-Merino.
+ * 
+ * This file is part of Annan.
+ * 
+ * Annan is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Annan is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Annan.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+
+package org.anann.core.events.dispatcher;
+
+import org.anann.core.events.holder.SimultaneousEvents;
+
+/**
+ * Dispatchers that can run a batch of simultaneous events read by index, so the batch can be reused
+ * by the caller and the dispatcher runs it without creating any object (not even an iterator). Used
+ * by the parallel mode of {@link org.anann.core.Simulator}, other dispatchers are given the batch
+ * through {@link #dispatch(java.util.Collection)}.
+ */
+public interface BatchEventsDispatcher extends EventsDispatcher {
+    /**
+     * Same as {@link #dispatch(java.util.Collection)}.
+     * @param events
+     */
+    public void dispatch(SimultaneousEvents events);
+}
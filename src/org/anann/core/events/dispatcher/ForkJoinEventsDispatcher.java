@@ -0,0 +1,215 @@
+/*
+ * Copyright 2013 Luis Rodero-Merino.
+ * 
+ * This file is part of Annan.
+ * 
+ * Annan is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Annan is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Annan.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package org.anann.core.events.dispatcher;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.anann.core.events.Event;
+import org.anann.core.events.holder.SimultaneousEvents;
+
+/**
+ * Parallel dispatcher based on a work-stealing {@link ForkJoinPool}, that chooses by itself how to
+ * split each batch of simultaneous events.
+ * It keeps an estimation of the time taken to run the events of each class of event handler (moving
+ * average of the times measured when running them). Batches whose estimated cost is too small to
+ * make up for the overhead of running them in parallel are run by the calling thread. Bigger batches
+ * are split recursively into halves of (estimated) equal cost, until each part is cheap enough to be
+ * run sequentially, so batches of uneven events are balanced and idle threads steal the remaining parts.
+ * Events without handler (i.e. that call some method) are all estimated together.
+ * <p>
+ * Worker threads are daemon threads, they can be stopped by calling {@link #shutdown()}.
+ */
+public class ForkJoinEventsDispatcher implements BatchEventsDispatcher {
+    
+    // Batches estimated to take less than this are run by the calling thread
+    private static final long INLINE_THRESHOLD_NANOS = 50000;
+    // Parts of a batch estimated to take less than this are not split anymore
+    private static final long LEAF_THRESHOLD_NANOS = 10000;
+    // Cost assumed for events of classes of handlers not seen yet
+    private static final long INITIAL_COST_NANOS = 1000;
+    // Weight of each new measure in moving averages is 1/2^AVERAGE_SHIFT
+    private static final int AVERAGE_SHIFT = 3;
+    
+    private final ForkJoinPool pool;
+    private final ConcurrentMap<Class<?>, CostEstimation> costs = new ConcurrentHashMap<Class<?>, CostEstimation>();
+    
+    // Batch being run, and prefix sums of the estimated costs of its events
+    private Event[] batch = new Event[256];
+    private CostEstimation[] batchCosts = new CostEstimation[256];
+    private long[] accumulatedCosts = new long[257];
+    
+    public ForkJoinEventsDispatcher() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+    
+    public ForkJoinEventsDispatcher(int threads) {
+        if(threads <= 0)
+            throw new IllegalArgumentException("Number of threads must be positive, cannot be " + threads);
+        pool = new ForkJoinPool(threads);
+    }
+
+    @Override
+    public void dispatch(Event event) {
+        event.fireEvent();
+    }
+
+    @Override
+    public void dispatch(Collection<Event> events) {
+        int size = events.size();
+        ensureCapacity(size);
+        int index = 0;
+        for(Event event: events)
+            addToBatch(index++, event);
+        runBatch(size);
+    }
+
+    @Override
+    public void dispatch(SimultaneousEvents events) {
+        int size = events.size();
+        ensureCapacity(size);
+        for(int i = 0; i < size; i++)
+            addToBatch(i, events.get(i));
+        runBatch(size);
+    }
+    
+    private void ensureCapacity(int size) {
+        if(size > batch.length) {
+            int capacity = Math.max(size, batch.length * 2);
+            batch = new Event[capacity];
+            batchCosts = new CostEstimation[capacity];
+            accumulatedCosts = new long[capacity + 1];
+        }
+    }
+    
+    private void addToBatch(int index, Event event) {
+        CostEstimation cost = costEstimation(event);
+        batch[index] = event;
+        batchCosts[index] = cost;
+        accumulatedCosts[index + 1] = accumulatedCosts[index] + cost.nanos;
+    }
+    
+    private void runBatch(int size) {
+        try {
+            if((size <= 1) || (accumulatedCosts[size] < INLINE_THRESHOLD_NANOS))
+                runSequentially(0, size);
+            else
+                pool.invoke(new BatchPart(0, size));
+        } finally {
+            for(int i = 0; i < size; i++) {
+                batch[i] = null;
+                batchCosts[i] = null;
+            }
+        }
+    }
+    
+    @Override
+    public boolean isSerial() {
+        return false;
+    }
+    
+    /**
+     * Stops the worker threads, the dispatcher cannot be used anymore.
+     */
+    public void shutdown() {
+        pool.shutdown();
+    }
+    
+    /**
+     * @param handlerClass
+     * @return The estimated time, in nanoseconds, to run events handled by instances of the class
+     * given ({@code null} for events without handler), -1 if no event of that class has been run yet.
+     */
+    public long estimatedCost(Class<?> handlerClass) {
+        CostEstimation cost = costs.get((handlerClass == null) ? Event.class : handlerClass);
+        return ((cost == null) || !cost.measured) ? -1 : cost.nanos;
+    }
+    
+    private CostEstimation costEstimation(Event event) {
+        Class<?> handlerClass = (event.getEventHandler() == null) ? Event.class : event.getEventHandler().getClass();
+        CostEstimation cost = costs.get(handlerClass);
+        if(cost == null) {
+            costs.putIfAbsent(handlerClass, new CostEstimation());
+            cost = costs.get(handlerClass);
+        }
+        return cost;
+    }
+    
+    private void runSequentially(int first, int last) {
+        for(int i = first; i < last; i++) {
+            long start = System.nanoTime();
+            batch[i].fireEvent();
+            batchCosts[i].update(System.nanoTime() - start);
+        }
+    }
+    
+    // Racy updates from several threads can lose some measures, that is fine for an estimation
+    static private class CostEstimation {
+        private volatile long nanos = INITIAL_COST_NANOS;
+        private volatile boolean measured = false;
+        
+        void update(long measure) {
+            if(!measured) {
+                nanos = measure;
+                measured = true;
+            } else {
+                nanos += (measure - nanos) >> AVERAGE_SHIFT;
+            }
+        }
+    }
+    
+    private class BatchPart extends RecursiveAction {
+        
+        private static final long serialVersionUID = 1L;
+        
+        private final int first;
+        private final int last;
+        
+        BatchPart(int first, int last) {
+            this.first = first;
+            this.last = last;
+        }
+
+        @Override
+        protected void compute() {
+            if((last - first <= 1) || (accumulatedCosts[last] - accumulatedCosts[first] < LEAF_THRESHOLD_NANOS)) {
+                runSequentially(first, last);
+                return;
+            }
+            // Splitting where half of the estimated cost is reached
+            long half = (accumulatedCosts[first] + accumulatedCosts[last]) / 2;
+            int low = first + 1;
+            int high = last - 1;
+            while(low < high) {
+                int middle = (low + high) >>> 1;
+                if(accumulatedCosts[middle] < half)
+                    low = middle + 1;
+                else
+                    high = middle;
+            }
+            invokeAll(new BatchPart(first, low), new BatchPart(low, last));
+        }
+    }
+
+}
@@ -33,6 +33,7 @@ import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 import org.anann.core.events.Event;
+import org.anann.core.events.holder.SimultaneousEvents;
 
 /**
  * This class, in contrast with {@link SerialEventDispatcher} can run
@@ -42,11 +43,16 @@ import org.anann.core.events.Event;
  * than in {@link SerialEventDispatcher}, it just triggers the event
  * using the calling thread (this way code is simplified and thread switching
  * is avoided).
+ * The tasks run by the pool are reused from batch to batch, but the executor still creates
+ * its own futures for each one, {@link PersistentPoolEventsDispatcher} avoids that.
  * @author lrodero
  */
-public class ParallelEventsDispatcher implements EventsDispatcher {
+public class ParallelEventsDispatcher implements BatchEventsDispatcher {
     
     private ExecutorService parallelEventsExecutor = null;
+    // Reusable tasks, the first ones are passed to the executor for each batch
+    private final List<EventCall> calls = new ArrayList<EventCall>();
+    private final List<EventCall> reusableCalls = new ArrayList<EventCall>();
     
     // We use a custom thread factory to be able to set names to the threads
     // that will be instantiated by the thread pool executor
@@ -61,8 +67,16 @@ public class ParallelEventsDispatcher implements EventsDispatcher {
     };
     
     public ParallelEventsDispatcher() {
-        int processors = Runtime.getRuntime().availableProcessors();
-        parallelEventsExecutor = new ThreadPoolExecutor(processors, processors, 1, TimeUnit.NANOSECONDS, new LinkedBlockingQueue<Runnable>(), thFactory);
+        this(Runtime.getRuntime().availableProcessors());
+    }
+    
+    /**
+     * @param threads Number of threads of the internal pool, i.e. maximum number of events run in parallel.
+     */
+    public ParallelEventsDispatcher(int threads) {
+        if(threads <= 0)
+            throw new IllegalArgumentException("Number of threads must be positive, cannot be " + threads);
+        parallelEventsExecutor = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.NANOSECONDS, new LinkedBlockingQueue<Runnable>(), thFactory);
         ((ThreadPoolExecutor)parallelEventsExecutor).allowCoreThreadTimeOut(true);
     }
     
@@ -73,10 +87,36 @@ public class ParallelEventsDispatcher implements EventsDispatcher {
 
     @Override
     public void dispatch(Collection<Event> events) {
+        calls.clear();
+        for(Event event: events)
+            calls.add(call(calls.size(), event));
+        invokeCalls();
+    }
+
+    @Override
+    public void dispatch(SimultaneousEvents events) {
+        calls.clear();
+        for(int i = 0; i < events.size(); i++)
+            calls.add(call(i, events.get(i)));
+        invokeCalls();
+    }
+    
+    private EventCall call(int index, Event event) {
+        if(index == reusableCalls.size())
+            reusableCalls.add(new EventCall());
+        EventCall call = reusableCalls.get(index);
+        call.event = event;
+        return call;
+    }
+    
+    private void invokeCalls() {
         try {
-            parallelEventsExecutor.invokeAll(EventCall.createCalls(events));
+            parallelEventsExecutor.invokeAll(calls);
         } catch (InterruptedException e) {
             throw new IllegalStateException("Thread(s) in events dispatcher internal pool were interrupted (?)", e);
+        } finally {
+            for(EventCall call: calls)
+                call.event = null;
         }
     }
     
@@ -88,23 +128,12 @@ public class ParallelEventsDispatcher implements EventsDispatcher {
     static private class EventCall implements Callable<Object> {
         
         private Event event = null;
-        
-        EventCall(Event event) {
-            this.event = event;
-        }
 
         @Override
         public Object call() throws Exception {
             event.fireEvent();
             return null;
         }
-        
-        static Collection<EventCall> createCalls(Collection<Event> events) {
-            List<EventCall> calls = new ArrayList<EventCall>(events.size());
-            for(Event event: events)
-                calls.add(new EventCall(event));
-            return calls;
-        }
     }
 
 }
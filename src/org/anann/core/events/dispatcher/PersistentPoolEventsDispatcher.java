@@ -0,0 +1,283 @@
+/*
+ * Copyright 2013 Luis Rodero-Merino.
+ * 
+ * This file is part of Annan.
+ * 
+ * Annan is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Annan is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Annan.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package org.anann.core.events.dispatcher;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.anann.core.events.Event;
+import org.anann.core.events.EventHandler;
+import org.anann.core.events.holder.SimultaneousEvents;
+
+/**
+ * Parallel dispatcher with long lived worker threads, intended for simulations with many small
+ * batches of simultaneous events, where {@link ParallelEventsDispatcher} spends more time creating
+ * threads and tasks than running events.
+ * Workers are created once and wait for batches spinning for a while, and then parking. Each batch
+ * is copied to a reusable array of slots, the workers are woken up by publishing a new batch number,
+ * and then they (and the calling thread, that also runs events) take events from the array until
+ * none is left. The calling thread waits for the workers to finish the batch the same way, first
+ * spinning and then parking. So no objects are created per batch, and if batches are frequent the
+ * whole hand over happens while threads are spinning, without any call to the operating system.
+ * <p>
+ * In affinity mode, events are not shared among threads. Instead, each batch is partitioned by event
+ * handler: all events of the same handler go to the same thread, that runs them sequentially in the
+ * same order they have in the batch. So the state of each handler is only touched by one thread during a
+ * batch. That is not enough to use handlers that are not thread safe (such as {@link org.anann.core.Entity}),
+ * as the events they schedule, reschedule or cancel still reach the simulator from several threads at once,
+ * so the holder must be a {@link org.anann.core.events.holder.ConcurrentEventsHolder}. Handlers are
+ * assigned to threads by their identity hash code, so a handler is always run by the same thread and its
+ * state is likely to be in that thread core cache. Events with no handler are all run by the calling thread.
+ * In deterministic and window modes (see {@link org.anann.core.Simulator#setDeterministic(boolean)} and
+ * {@link org.anann.core.Simulator#setLookahead(long)}) the simulator already gives the dispatcher one proxy
+ * event per handler, which fires all the events of that handler, so affinity mode adds no safety there: it
+ * only partitions the proxies, and a handler is not always run by the same thread from batch to batch.
+ * The price to pay is that threads can be left idle if the events of a batch are not evenly distributed.
+ * <p>
+ * Worker threads are daemon threads, they can be stopped by calling {@link #shutdown()}.
+ * If some event fails when fired, the exception is thrown to the caller of {@link #dispatch(Collection)}
+ * once the batch is finished.
+ */
+public class PersistentPoolEventsDispatcher implements BatchEventsDispatcher {
+    
+    // Iterations spinning before parking (spinning is useless with a single processor)
+    private static final int SPINS = (Runtime.getRuntime().availableProcessors() > 1) ? 1 << 12 : 0;
+    
+    private final Worker[] workers;
+    private final boolean affinity;
+    
+    // Batch being run, published by the write to batchNumber
+    private Event[] slots = new Event[256];
+    private int batchSize = 0;
+    private int chunkSize = 1;
+    private volatile int batchNumber = 0;
+    private final AtomicInteger nextSlot = new AtomicInteger();
+    // In affinity mode, events of the batch for each thread (calling thread is 0)
+    private Event[][] partitions = null;
+    private int[] partitionSizes = null;
+    // Workers that have not finished the present batch yet
+    private final AtomicInteger runningWorkers = new AtomicInteger();
+    private volatile Thread dispatchingThread = null;
+    private volatile Throwable failure = null;
+    private volatile boolean shutdown = false;
+    
+    public PersistentPoolEventsDispatcher() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+    
+    public PersistentPoolEventsDispatcher(int threads) {
+        this(threads, false);
+    }
+    
+    /**
+     * @param threads Maximum number of events run in parallel, including the thread calling to
+     * {@link #dispatch(Collection)} (so {@code threads - 1} workers are created).
+     * @param affinity Whether all events of the same handler must be run by the same thread.
+     */
+    public PersistentPoolEventsDispatcher(int threads, boolean affinity) {
+        if(threads <= 0)
+            throw new IllegalArgumentException("Number of threads must be positive, cannot be " + threads);
+        this.affinity = affinity;
+        if(affinity) {
+            partitions = new Event[threads][16];
+            partitionSizes = new int[threads];
+        }
+        workers = new Worker[threads - 1];
+        for(int i = 0; i < workers.length; i++) {
+            workers[i] = new Worker(i + 1);
+            workers[i].setName("SIM-" + workers[i].getId());
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    @Override
+    public void dispatch(Event event) {
+        event.fireEvent();
+    }
+
+    @Override
+    public void dispatch(Collection<Event> events) {
+        if(shutdown)
+            throw new IllegalStateException("Dispatcher has been shut down");
+        int size = events.size();
+        if((size <= 1) || (workers.length == 0)) {
+            for(Event event: events)
+                event.fireEvent();
+            return;
+        }
+        if(!affinity && (size > slots.length))
+            slots = new Event[Math.max(size, slots.length * 2)];
+        int index = 0;
+        for(Event event: events)
+            addToBatch(index++, event);
+        runBatch(size);
+    }
+
+    @Override
+    public void dispatch(SimultaneousEvents events) {
+        if(shutdown)
+            throw new IllegalStateException("Dispatcher has been shut down");
+        int size = events.size();
+        if((size <= 1) || (workers.length == 0)) {
+            for(int i = 0; i < size; i++)
+                events.get(i).fireEvent();
+            return;
+        }
+        if(!affinity && (size > slots.length))
+            slots = new Event[Math.max(size, slots.length * 2)];
+        for(int i = 0; i < size; i++)
+            addToBatch(i, events.get(i));
+        runBatch(size);
+    }
+    
+    private void addToBatch(int index, Event event) {
+        if(affinity)
+            addToPartition(event);
+        else
+            slots[index] = event;
+    }
+    
+    private void runBatch(int size) {
+        if(!affinity) {
+            batchSize = size;
+            // Several chunks per thread, so threads that get cheaper events can take more of them
+            chunkSize = Math.max(1, size / ((workers.length + 1) * 4));
+            nextSlot.set(0);
+        }
+        runningWorkers.set(workers.length);
+        dispatchingThread = Thread.currentThread();
+        batchNumber++;
+        for(Worker worker: workers)
+            LockSupport.unpark(worker);
+        if(affinity)
+            runPartition(0);
+        else
+            runSlots();
+        for(int spins = 0; runningWorkers.get() > 0; spins++)
+            if(spins >= SPINS)
+                LockSupport.park(this);
+        if(!affinity)
+            Arrays.fill(slots, 0, size, null);
+        Throwable throwable = failure;
+        if(throwable != null) {
+            failure = null;
+            if(throwable instanceof RuntimeException)
+                throw (RuntimeException)throwable;
+            if(throwable instanceof Error)
+                throw (Error)throwable;
+            throw new IllegalStateException("Some event failed when fired by dispatcher", throwable);
+        }
+    }
+    
+    @Override
+    public boolean isSerial() {
+        return false;
+    }
+    
+    /**
+     * Stops the worker threads, the dispatcher cannot be used anymore.
+     */
+    public void shutdown() {
+        shutdown = true;
+        for(Worker worker: workers)
+            LockSupport.unpark(worker);
+    }
+    
+    private void addToPartition(Event event) {
+        int partition = partitionOf(event.getEventHandler());
+        int index = partitionSizes[partition];
+        if(index == partitions[partition].length)
+            partitions[partition] = Arrays.copyOf(partitions[partition], index * 2);
+        partitions[partition][index] = event;
+        partitionSizes[partition] = index + 1;
+    }
+    
+    private int partitionOf(EventHandler eventHandler) {
+        if(eventHandler == null)
+            return 0;
+        int hash = System.identityHashCode(eventHandler);
+        hash ^= (hash >>> 16);
+        return (hash & Integer.MAX_VALUE) % partitions.length;
+    }
+    
+    private void runSlots() {
+        int size = batchSize;
+        int chunk = chunkSize;
+        while(true) {
+            int first = nextSlot.getAndAdd(chunk);
+            if(first >= size)
+                return;
+            int last = Math.min(first + chunk, size);
+            for(int i = first; i < last; i++)
+                fire(slots[i]);
+        }
+    }
+    
+    private void runPartition(int partition) {
+        Event[] events = partitions[partition];
+        int size = partitionSizes[partition];
+        for(int i = 0; i < size; i++) {
+            fire(events[i]);
+            events[i] = null;
+        }
+        partitionSizes[partition] = 0;
+    }
+    
+    private void fire(Event event) {
+        try {
+            event.fireEvent();
+        } catch (Throwable throwable) {
+            failure = throwable;
+        }
+    }
+    
+    private class Worker extends Thread {
+        
+        private final int partition;
+        
+        Worker(int partition) {
+            this.partition = partition;
+        }
+        
+        @Override
+        public void run() {
+            int lastBatch = 0;
+            while(true) {
+                for(int spins = 0; (batchNumber == lastBatch) && !shutdown; spins++)
+                    if(spins >= SPINS)
+                        LockSupport.park(this);
+                if(shutdown)
+                    return;
+                lastBatch = batchNumber;
+                if(affinity)
+                    runPartition(partition);
+                else
+                    runSlots();
+                if(runningWorkers.decrementAndGet() == 0)
+                    LockSupport.unpark(dispatchingThread);
+            }
+        }
+    }
+
+}
@@ -23,6 +23,7 @@ package org.anann.core.events.dispatcher;
 import java.util.Collection;
 
 import org.anann.core.events.Event;
+import org.anann.core.events.holder.SimultaneousEvents;
 
 /**
  * This dispatcher just triggers events 'one by one' using the 
@@ -30,7 +31,7 @@ import org.anann.core.events.Event;
  * @author lrodero
  *
  */
-public class SerialEventDispatcher implements EventsDispatcher {
+public class SerialEventDispatcher implements BatchEventsDispatcher {
 
     @Override
     public void dispatch(Event event) {
@@ -42,6 +43,12 @@ public class SerialEventDispatcher implements EventsDispatcher {
         for(Event event: events)
             dispatch(event);
     }
+
+    @Override
+    public void dispatch(SimultaneousEvents events) {
+        for(int i = 0; i < events.size(); i++)
+            dispatch(events.get(i));
+    }
     
     @Override
     public boolean isSerial() {
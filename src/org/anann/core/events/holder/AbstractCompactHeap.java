@@ -0,0 +1,290 @@
+/*
+ * Copyright 2013 Luis Rodero-Merino.
+ * 
+ * This file is part of Annan.
+ * 
+ * Annan is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Annan is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Annan.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package org.anann.core.events.holder;
+
+import java.util.Arrays;
+import java.util.SortedSet;
+
+import org.anann.core.events.Event;
+import org.anann.core.events.EventHandler;
+
+/**
+ * 4-ary heap of fixed size entries, shared by the holders that keep events out of {@link Event} instances
+ * ({@link EHBasedOnPrimitiveArrays} and {@link EHBasedOnDirectBuffers}). Each entry has the event firing time,
+ * priority, insertion sequence, code and a reference: the handler id for compact events (see
+ * {@link CompactEventsHolder}), or -(slot+1) for {@link Event} instances, which are kept in slots as they
+ * must be returned later. Subclasses only store the entries, this class keeps them as a heap and manages
+ * the slots and handlers.
+ * {@link Event} instances added remember their slot (see {@link Event#getHolderIndex()}), so
+ * they can be removed or rescheduled in O(log n) time.
+ * Events with the same firing time and priority are returned in the same order they were added.
+ */
+abstract class AbstractCompactHeap implements CompactEventsHolder, BatchEventsHolder {
+    
+    private static final int ARITY = 4;
+    private static final int INITIAL_SLOTS = 1024;
+    
+    private int size = 0;
+    private long nextSequence = 0;
+    
+    // Events instances, by slot
+    private Event[] slotEvents = new Event[INITIAL_SLOTS];
+    private int[] slotPositions = new int[INITIAL_SLOTS];
+    private int[] freeSlots = new int[INITIAL_SLOTS];
+    private int freeSlotsCount = 0;
+    private int slotsUsed = 0;
+    
+    private EventHandler[] handlers = new EventHandler[16];
+    private int handlersCount = 0;
+    
+    /**
+     * Makes room for at least the given number of entries.
+     */
+    abstract void ensureCapacity(int entries);
+    abstract long time(int position);
+    abstract int priority(int position);
+    abstract long sequence(int position);
+    abstract int code(int position);
+    abstract int reference(int position);
+    abstract void write(int position, long time, int priority, long sequence, int code, int reference);
+    /**
+     * Copies the entry at {@code from} over the one at {@code to}.
+     * @return Reference of the entry copied.
+     */
+    abstract int copy(int from, int to);
+
+    @Override
+    public int registerHandler(EventHandler eventHandler) {
+        if(eventHandler == null)
+            throw new IllegalArgumentException("Cannot register a null event handler");
+        if(handlersCount == handlers.length)
+            handlers = Arrays.copyOf(handlers, handlersCount * 2);
+        handlers[handlersCount] = eventHandler;
+        return handlersCount++;
+    }
+
+    @Override
+    public void add(long firingTime, int code, int handlerId, int priority) {
+        if((handlerId < 0) || (handlerId >= handlersCount))
+            throw new IllegalArgumentException("There is no event handler registered with id " + handlerId);
+        if(firingTime < 0)
+            throw new IllegalArgumentException("Trying to add an event to be triggered at a negative time");
+        insert(firingTime, priority, code, handlerId);
+    }
+
+    @Override
+    public void add(Event event) {
+        int slot = allocateSlot();
+        slotEvents[slot] = event;
+        event.setHolderIndex(slot);
+        insert(event.getFiringTime(), event.getPriority(), event.getCode(), -(slot + 1));
+    }
+
+    @Override
+    public boolean remove(Event event) {
+        int slot = slotOf(event);
+        if(slot < 0)
+            return false;
+        removeAt(slotPositions[slot]);
+        return true;
+    }
+
+    @Override
+    public boolean reschedule(Event event, long newFiringTime) {
+        int slot = slotOf(event);
+        event.setFiringTime(newFiringTime);
+        if(slot < 0) {
+            add(event);
+            return false;
+        }
+        int position = slotPositions[slot];
+        long oldFiringTime = time(position);
+        // A rescheduled event goes after the ones already stored with the same time and priority
+        if(newFiringTime < oldFiringTime)
+            siftUp(position, newFiringTime, event.getPriority(), nextSequence++, event.getCode(), -(slot + 1));
+        else
+            siftDown(position, newFiringTime, event.getPriority(), nextSequence++, event.getCode(), -(slot + 1));
+        return true;
+    }
+
+    @Override
+    public Event next() {
+        if(size == 0)
+            return null;
+        return removeAt(0);
+    }
+
+    @Override
+    public SortedSet<Event> nextSimultaneous() {
+        SimultaneousEvents simultaneousEvents = new SimultaneousEvents();
+        return (nextSimultaneous(simultaneousEvents) == 0) ? null : simultaneousEvents;
+    }
+
+    @Override
+    public int nextSimultaneous(SimultaneousEvents batch) {
+        batch.clear();
+        if(size == 0)
+            return 0;
+        long time = time(0);
+        int priority = priority(0);
+        while((size > 0) && (time(0) == time) && (priority(0) == priority))
+            batch.addEvent(removeAt(0));
+        return batch.size();
+    }
+
+    /**
+     * If the next event is a compact one, a new {@link Event} instance is created
+     * for it, which will be a different instance than the one later returned by {@link #next()}.
+     */
+    @Override
+    public Event peek() {
+        if(size == 0)
+            return null;
+        return eventAt(0);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        for(int slot = 0; slot < slotsUsed; slot++) {
+            if(slotEvents[slot] != null) {
+                slotEvents[slot].setHolderIndex(-1);
+                slotEvents[slot] = null;
+            }
+        }
+        size = 0;
+        slotsUsed = 0;
+        freeSlotsCount = 0;
+    }
+    
+    private int slotOf(Event event) {
+        int slot = event.getHolderIndex();
+        if((slot < 0) || (slot >= slotsUsed) || (slotEvents[slot] != event))
+            return -1;
+        return slot;
+    }
+    
+    private int allocateSlot() {
+        if(freeSlotsCount > 0)
+            return freeSlots[--freeSlotsCount];
+        if(slotsUsed == slotEvents.length) {
+            int capacity = slotsUsed * 2;
+            slotEvents = Arrays.copyOf(slotEvents, capacity);
+            slotPositions = Arrays.copyOf(slotPositions, capacity);
+            freeSlots = Arrays.copyOf(freeSlots, capacity);
+        }
+        return slotsUsed++;
+    }
+    
+    private Event eventAt(int position) {
+        int reference = reference(position);
+        if(reference < 0)
+            return slotEvents[-reference - 1];
+        return new Event(time(position), code(position), handlers[reference], priority(position));
+    }
+    
+    private void insert(long time, int priority, int code, int reference) {
+        ensureCapacity(size + 1);
+        siftUp(size++, time, priority, nextSequence++, code, reference);
+    }
+    
+    private Event removeAt(int position) {
+        Event removed = eventAt(position);
+        int reference = reference(position);
+        if(reference < 0) {
+            int slot = -reference - 1;
+            removed.setHolderIndex(-1);
+            slotEvents[slot] = null;
+            freeSlots[freeSlotsCount++] = slot;
+        }
+        int last = --size;
+        if(position == last)
+            return removed;
+        // The last entry is moved to the hole, it may need to go up or down
+        long time = time(last);
+        int priority = priority(last);
+        long sequence = sequence(last);
+        int code = code(last);
+        reference = reference(last);
+        if((position > 0) && before(time, priority, sequence, (position - 1) / ARITY))
+            siftUp(position, time, priority, sequence, code, reference);
+        else
+            siftDown(position, time, priority, sequence, code, reference);
+        return removed;
+    }
+    
+    private void siftUp(int position, long time, int priority, long sequence, int code, int reference) {
+        while(position > 0) {
+            int parent = (position - 1) / ARITY;
+            if(!before(time, priority, sequence, parent))
+                break;
+            move(parent, position);
+            position = parent;
+        }
+        place(position, time, priority, sequence, code, reference);
+    }
+    
+    private void siftDown(int position, long time, int priority, long sequence, int code, int reference) {
+        while(true) {
+            int firstChild = position * ARITY + 1;
+            if(firstChild >= size)
+                break;
+            int lastChild = Math.min(firstChild + ARITY, size);
+            int minChild = firstChild;
+            for(int child = firstChild + 1; child < lastChild; child++)
+                if(before(time(child), priority(child), sequence(child), minChild))
+                    minChild = child;
+            if(before(time, priority, sequence, minChild))
+                break;
+            move(minChild, position);
+            position = minChild;
+        }
+        place(position, time, priority, sequence, code, reference);
+    }
+    
+    private void move(int from, int to) {
+        int reference = copy(from, to);
+        if(reference < 0)
+            slotPositions[-reference - 1] = to;
+    }
+    
+    private void place(int position, long time, int priority, long sequence, int code, int reference) {
+        write(position, time, priority, sequence, code, reference);
+        if(reference < 0)
+            slotPositions[-reference - 1] = position;
+    }
+    
+    // Whether the given key goes before the entry at the given position, same criteria than Event.ORDERER
+    private boolean before(long time, int priority, long sequence, int position) {
+        long positionTime = time(position);
+        if(time != positionTime)
+            return time < positionTime;
+        int positionPriority = priority(position);
+        if(priority != positionPriority)
+            return priority > positionPriority;
+        return sequence < sequence(position);
+    }
+
+}
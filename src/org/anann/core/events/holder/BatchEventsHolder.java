@@ -0,0 +1,37 @@
+/*
+ * Copyright 2013 Luis Rodero-Merino.
+ * 
+ * This file is part of Annan.
+ * 
+ * Annan is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Annan is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Annan.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+
+package org.anann.core.events.holder;
+
+/**
+ * Events holders that can give the next simultaneous events in a batch owned by the caller, so
+ * the batch can be reused and no objects are created each time. Used by the parallel mode of
+ * {@link org.anann.core.Simulator}.
+ */
+public interface BatchEventsHolder extends EventsHolder {
+    /**
+     * Removes the next events from the holder, that is, the first one and all that are simultaneous
+     * with it, and puts them in the batch given. The batch is cleared first.
+     * @param batch
+     * @return Number of events put in the batch, 0 if the holder is empty.
+     */
+    public int nextSimultaneous(SimultaneousEvents batch);
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2013 Luis Rodero-Merino.
+ * 
+ * This file is part of Annan.
+ * 
+ * Annan is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Annan is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Annan.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package org.anann.core.events.holder;
+
+import org.anann.core.events.EventHandler;
+
+/**
+ * Events holders that can store events in a compact form, without keeping any
+ * {@link org.anann.core.events.Event} instance for them while they are pending.
+ * The handler of those events is referred by an integer id, obtained by registering
+ * it first in the holder. The {@link org.anann.core.events.Event} instance is only
+ * created when the event is returned by the holder to be fired.
+ * Compact events cannot be cancelled or rescheduled, as there is no instance to refer to them.
+ * See {@link org.anann.core.Simulator#schedule(long, int, int, int)}.
+ */
+public interface CompactEventsHolder extends EventsHolder {
+    
+    /**
+     * @param eventHandler
+     * @return The id of the handler, to be passed to {@link #add(long, int, int, int)}.
+     */
+    public int registerHandler(EventHandler eventHandler);
+    
+    public void add(long firingTime, int code, int handlerId, int priority);
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright 2013 Luis Rodero-Merino.
+ * 
+ * This file is part of Annan.
+ * 
+ * Annan is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Annan is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Annan.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package org.anann.core.events.holder;
+
+/**
+ * Events holders that can be used by several threads at the same time with no external locking,
+ * so event handlers run in parallel (see {@link org.anann.core.events.dispatcher.ParallelEventsDispatcher})
+ * can schedule and cancel events directly through the simulator.
+ * <p>
+ * Implementations must guarantee that:
+ * <ul>
+ * <li>{@link #add(org.anann.core.events.Event)}, {@link #remove(org.anann.core.events.Event)},
+ * {@link #next()} and {@link #peek()} are linearizable.</li>
+ * <li>{@link #nextSimultaneous()} returns events that all share the firing time and priority of the first one,
+ * and includes every event with that firing time and priority that was added before the call started and
+ * not removed in the meantime. Events with that firing time and priority added while the call is running
+ * may be returned by it or by the following call. The call as a whole is not atomic.</li>
+ * </ul>
+ * {@link #size()} and {@link #clear()} are not required to be atomic, and operations on the same event
+ * must not be run by several threads at the same time (an event is always handled by one thread at a time).
+ */
+public interface ConcurrentEventsHolder extends EventsHolder {
+}
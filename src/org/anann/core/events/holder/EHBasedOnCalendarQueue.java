@@ -0,0 +1,336 @@
+/*
+ * Copyright 2013 Luis Rodero-Merino.
+ * 
+ * This file is part of Annan.
+ * 
+ * Annan is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Annan is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Annan.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package org.anann.core.events.holder;
+
+import java.util.SortedSet;
+
+import org.anann.core.events.Event;
+
+/**
+ * Calendar queue (R. Brown, "Calendar queues: a fast O(1) priority queue
+ * implementation for the simulation event set problem", CACM 1988).
+ * Events are spread among an array of 'days' (buckets) of a fixed width, each
+ * bucket being a list sorted using {@link Event#ORDERER}. The number of buckets
+ * is doubled or halved as the number of events grows or shrinks, and each
+ * time that happens the bucket width is recomputed by sampling the separation
+ * among the next events to be fired. This way, both {@link #add(Event)} and
+ * {@link #next()} take O(1) amortized time as long as events firing times are
+ * more or less evenly distributed.
+ * Events with the same firing time and priority are returned in the same order
+ * they were added.
+ */
+public class EHBasedOnCalendarQueue implements BatchEventsHolder {
+    
+    private static final int MIN_BUCKETS = 2;
+    private static final int MAX_SAMPLES = 25;
+    
+    private Node[] buckets = null;
+    // Last node of each bucket, so events going after all the others in their bucket are added in O(1) time
+    private Node[] tails = null;
+    private long bucketWidth = 1;
+    private int size = 0;
+    
+    private int topThreshold = 0;
+    private int bottomThreshold = 0;
+    
+    // Bucket where the last event was taken from, and the upper time limit (exclusive)
+    // of that bucket in the present 'year'
+    private int lastBucket = 0;
+    private long bucketTop = 0;
+    // Firing time of last event taken from the queue
+    private long lastTime = 0;
+    
+    public EHBasedOnCalendarQueue() {
+        init(MIN_BUCKETS, 1, 0);
+    }
+
+    @Override
+    public void add(Event event) {
+        if(event.getFiringTime() < lastTime) {
+            // Events in the past of the calendar are allowed, so the 'present' must be moved backwards
+            lastTime = event.getFiringTime();
+            lastBucket = bucketIndex(lastTime);
+            bucketTop = (lastTime / bucketWidth + 1) * bucketWidth;
+        }
+        insert(new Node(event));
+        size++;
+        if(size > topThreshold)
+            resize(buckets.length * 2);
+    }
+
+    @Override
+    public boolean remove(Event event) {
+        int index = bucketIndex(event.getFiringTime());
+        Node previous = null;
+        for(Node node = buckets[index]; node != null; previous = node, node = node.next) {
+            if(node.event != event)
+                continue;
+            if(previous == null)
+                buckets[index] = node.next;
+            else
+                previous.next = node.next;
+            if(node.next == null)
+                tails[index] = previous;
+            size--;
+            if(size < bottomThreshold)
+                resize(buckets.length / 2);
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean reschedule(Event event, long newFiringTime) {
+        boolean found = remove(event);
+        event.setFiringTime(newFiringTime);
+        add(event);
+        return found;
+    }
+
+    @Override
+    public Event next() {
+        if(!locateNext())
+            return null;
+        Event event = pollHead();
+        if(size < bottomThreshold)
+            resize(buckets.length / 2);
+        return event;
+    }
+
+    @Override
+    public SortedSet<Event> nextSimultaneous() {
+        SimultaneousEvents simultaneousEvents = new SimultaneousEvents();
+        return (nextSimultaneous(simultaneousEvents) == 0) ? null : simultaneousEvents;
+    }
+
+    @Override
+    public int nextSimultaneous(SimultaneousEvents batch) {
+        batch.clear();
+        if(!locateNext())
+            return 0;
+        // Simultaneous events share firing time, so they are all together at the head of the same bucket
+        Event nextEvent = pollHead();
+        batch.addEvent(nextEvent);
+        while((buckets[lastBucket] != null) && nextEvent.isSimultaneous(buckets[lastBucket].event))
+            batch.addEvent(pollHead());
+        if(size < bottomThreshold)
+            resize(buckets.length / 2);
+        return batch.size();
+    }
+
+    @Override
+    public Event peek() {
+        if(!locateNext())
+            return null;
+        return buckets[lastBucket].event;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        init(MIN_BUCKETS, 1, 0);
+        size = 0;
+    }
+    
+    /**
+     * Moves the calendar 'present' ({@link #lastBucket} and {@link #bucketTop}) to the
+     * bucket whose first event is the next one to be fired.
+     * @return {@code false} if there are no events in the queue.
+     */
+    protected boolean locateNext() {
+        if(size == 0)
+            return false;
+        int index = lastBucket;
+        long top = bucketTop;
+        for(int checked = 0; checked < buckets.length; checked++) {
+            Node head = buckets[index];
+            if((head != null) && (head.event.getFiringTime() < top)) {
+                lastBucket = index;
+                bucketTop = top;
+                lastTime = head.event.getFiringTime();
+                return true;
+            }
+            if(++index == buckets.length)
+                index = 0;
+            top += bucketWidth;
+        }
+        // Went around a whole 'year' without finding an event, direct search for the earliest one
+        Node earliest = null;
+        for(int i = 0; i < buckets.length; i++) {
+            Node head = buckets[i];
+            if((head != null) && ((earliest == null) || (Event.ORDERER.compare(head.event, earliest.event) < 0))) {
+                earliest = head;
+                index = i;
+            }
+        }
+        lastBucket = index;
+        lastTime = earliest.event.getFiringTime();
+        bucketTop = (lastTime / bucketWidth + 1) * bucketWidth;
+        return true;
+    }
+    
+    // Removes the first event of the present bucket, locateNext() must be called before
+    private Event pollHead() {
+        Node head = buckets[lastBucket];
+        buckets[lastBucket] = head.next;
+        if(head.next == null)
+            tails[lastBucket] = null;
+        size--;
+        return head.event;
+    }
+    
+    private int bucketIndex(long time) {
+        return (int)((time / bucketWidth) % buckets.length);
+    }
+    
+    // Inserts the node in its bucket, after all events to be fired before or at the same time and priority
+    private void insert(Node node) {
+        int index = bucketIndex(node.event.getFiringTime());
+        Node tail = tails[index];
+        if((tail == null) || (Event.ORDERER.compare(tail.event, node.event) <= 0)) {
+            node.next = null;
+            if(tail == null)
+                buckets[index] = node;
+            else
+                tail.next = node;
+            tails[index] = node;
+            return;
+        }
+        Node previous = null;
+        Node current = buckets[index];
+        while((current != null) && (Event.ORDERER.compare(current.event, node.event) <= 0)) {
+            previous = current;
+            current = current.next;
+        }
+        node.next = current;
+        if(previous == null)
+            buckets[index] = node;
+        else
+            previous.next = node;
+    }
+    
+    private void init(int bucketsCount, long bucketWidth, long startTime) {
+        buckets = new Node[bucketsCount];
+        tails = new Node[bucketsCount];
+        this.bucketWidth = bucketWidth;
+        lastTime = startTime;
+        lastBucket = bucketIndex(startTime);
+        bucketTop = (startTime / bucketWidth + 1) * bucketWidth;
+        topThreshold = 2 * bucketsCount;
+        bottomThreshold = (bucketsCount <= MIN_BUCKETS) ? 0 : bucketsCount / 2 - 2;
+    }
+    
+    protected void resize(int newBucketsCount) {
+        if(newBucketsCount < MIN_BUCKETS)
+            newBucketsCount = MIN_BUCKETS;
+        long newWidth = computeNewWidth();
+        Node[] oldBuckets = buckets;
+        init(newBucketsCount, newWidth, lastTime);
+        for(Node head: oldBuckets) {
+            Node node = head;
+            while(node != null) {
+                Node next = node.next;
+                insert(node);
+                node = next;
+            }
+        }
+    }
+    
+    // Brown's heuristic: three times the average separation among the next events, once
+    // the separations much bigger than the average have been discarded 
+    protected long computeNewWidth() {
+        if(size < 2)
+            return bucketWidth;
+        int samplesCount = (size <= 5) ? size : Math.min(5 + size / 10, MAX_SAMPLES);
+        long[] samples = sampleNextTimes(samplesCount);
+        
+        long totalSeparation = 0;
+        for(int i = 1; i < samplesCount; i++)
+            totalSeparation += samples[i] - samples[i-1];
+        double averageSeparation = (double)totalSeparation / (samplesCount - 1);
+        totalSeparation = 0;
+        int separationsCount = 0;
+        for(int i = 1; i < samplesCount; i++) {
+            long separation = samples[i] - samples[i-1];
+            if(separation <= 2 * averageSeparation) {
+                totalSeparation += separation;
+                separationsCount++;
+            }
+        }
+        long newWidth = (separationsCount == 0) ? 0 : (3 * totalSeparation) / separationsCount;
+        return (newWidth < 1) ? 1 : newWidth;
+    }
+    
+    /**
+     * Firing times of the next events to be fired, in order. Walks the buckets the same way as
+     * {@link #locateNext()}, but with a cursor per bucket instead of taking the events out, so
+     * the queue (and the order among simultaneous events) is left untouched.
+     * @param count Number of times to return, at most {@link #size()}.
+     */
+    private long[] sampleNextTimes(int count) {
+        long[] times = new long[count];
+        Node[] cursors = buckets.clone();
+        int index = lastBucket;
+        long top = bucketTop;
+        int checked = 0;
+        int taken = 0;
+        while(taken < count) {
+            Node cursor = cursors[index];
+            if((cursor != null) && (cursor.event.getFiringTime() < top)) {
+                times[taken++] = cursor.event.getFiringTime();
+                cursors[index] = cursor.next;
+                checked = 0;
+                continue;
+            }
+            if(++checked < cursors.length) {
+                if(++index == cursors.length)
+                    index = 0;
+                top += bucketWidth;
+                continue;
+            }
+            // Went around a whole 'year' without finding an event, direct search for the earliest one
+            Node earliest = null;
+            for(int i = 0; i < cursors.length; i++) {
+                Node head = cursors[i];
+                if((head != null) && ((earliest == null) || (Event.ORDERER.compare(head.event, earliest.event) < 0))) {
+                    earliest = head;
+                    index = i;
+                }
+            }
+            top = (earliest.event.getFiringTime() / bucketWidth + 1) * bucketWidth;
+            checked = 0;
+        }
+        return times;
+    }
+    
+    static private class Node {
+        private final Event event;
+        private Node next = null;
+        Node(Event event) {
+            this.event = event;
+        }
+    }
+
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright 2013 Luis Rodero-Merino.
+ * 
+ * This file is part of Annan.
+ * 
+ * Annan is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Annan is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Annan.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package org.anann.core.events.holder;
+
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.anann.core.events.Event;
+
+/**
+ * Thread safe events holder based on a lock-free skip list ({@link ConcurrentSkipListMap}).
+ * Events are ordered by {@link Event#ORDERER}, and events with the same firing time and priority
+ * are kept in insertion order by a sequence number stored as the event holder index.
+ * See {@link ConcurrentEventsHolder} for the guarantees given when used by several threads.
+ * <p>
+ * The sequence number wraps around, so at most {@code 2^31} events can be added between an
+ * event being added and being taken out.
+ */
+public class EHBasedOnConcurrentSkipList implements ConcurrentEventsHolder, BatchEventsHolder {
+    
+    private static final Comparator<Event> SEQUENCED_ORDERER = new Comparator<Event>() {
+        @Override
+        public int compare(Event e1, Event e2) {
+            int result = Event.ORDERER.compare(e1, e2);
+            if(result != 0)
+                return result;
+            // Subtraction, so the comparison still holds when the sequence wraps around
+            int difference = e1.getHolderIndex() - e2.getHolderIndex();
+            return (difference < 0) ? -1 : ((difference > 0) ? 1 : 0);
+        }
+    };
+    
+    // Each event is mapped to itself, so it is only removed if that very instance is stored
+    private final ConcurrentSkipListMap<Event, Event> events = new ConcurrentSkipListMap<Event, Event>(SEQUENCED_ORDERER);
+    private final AtomicInteger sequence = new AtomicInteger();
+    // Size of a concurrent skip list is computed traversing it, so it is kept apart
+    private final AtomicInteger size = new AtomicInteger();
+
+    @Override
+    public void add(Event event) {
+        event.setHolderIndex(sequence.getAndIncrement());
+        events.put(event, event);
+        size.incrementAndGet();
+    }
+
+    @Override
+    public boolean remove(Event event) {
+        if(!events.remove(event, event))
+            return false;
+        size.decrementAndGet();
+        return true;
+    }
+
+    /**
+     * Removes the event and adds it again, so for a moment the event is in none of its positions.
+     */
+    @Override
+    public boolean reschedule(Event event, long newFiringTime) {
+        boolean found = remove(event);
+        event.setFiringTime(newFiringTime);
+        add(event);
+        return found;
+    }
+
+    @Override
+    public Event next() {
+        Map.Entry<Event, Event> first = events.pollFirstEntry();
+        if(first == null)
+            return null;
+        size.decrementAndGet();
+        return first.getValue();
+    }
+
+    /**
+     * Takes events one by one while the first event stored has the same firing time and priority of
+     * the first event taken, so events added while it runs can be either returned or left in the holder.
+     */
+    @Override
+    public SimultaneousEvents nextSimultaneous() {
+        SimultaneousEvents simultaneousEvents = new SimultaneousEvents();
+        return (nextSimultaneous(simultaneousEvents) == 0) ? null : simultaneousEvents;
+    }
+
+    @Override
+    public int nextSimultaneous(SimultaneousEvents batch) {
+        batch.clear();
+        Event head = next();
+        if(head == null)
+            return 0;
+        batch.addEvent(head);
+        while(true) {
+            Map.Entry<Event, Event> first = events.firstEntry();
+            if((first == null) || (Event.ORDERER.compare(head, first.getKey()) != 0))
+                return batch.size();
+            // Some other thread can remove it before we do, then just try with the new first event
+            if(remove(first.getValue()))
+                batch.addEvent(first.getValue());
+        }
+    }
+
+    @Override
+    public Event peek() {
+        Map.Entry<Event, Event> first = events.firstEntry();
+        return (first == null) ? null : first.getValue();
+    }
+
+    @Override
+    public int size() {
+        return Math.max(0, size.get());
+    }
+
+    @Override
+    public void clear() {
+        while(next() != null);
+    }
+
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2013 Luis Rodero-Merino.
+ * 
+ * This file is part of Annan.
+ * 
+ * Annan is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Annan is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Annan.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package org.anann.core.events.holder;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import org.anann.core.events.Event;
+
+/**
+ * 4-ary heap stored out of the Java heap, in direct {@link ByteBuffer} segments or, if a file is
+ * given, in segments of that file mapped in memory. Each entry of the heap is a fixed size record
+ * with the event firing time, priority, insertion sequence, code and a reference to its handler, so
+ * the memory used by pending compact events (see {@link CompactEventsHolder}) is not managed by the
+ * garbage collector at all, and the time taken by full collections does not grow with the
+ * number of pending events.
+ * {@link Event} instances added are still kept in the Java heap (the record refers to them by
+ * a slot id), as they must be returned later. They remember their slot (see
+ * {@link Event#getHolderIndex()}), so they can be removed or rescheduled in O(log n) time.
+ * Events with the same firing time and priority are returned in the same order they were added.
+ * Segments already allocated are kept when the holder is cleared, to be reused.
+ * The holder must be closed once it is no longer needed, so the events file (if any) is closed.
+ */
+public class EHBasedOnDirectBuffers extends AbstractCompactHeap implements Closeable {
+    
+    // Record layout
+    private static final int RECORD_SIZE = 32;
+    private static final int TIME_OFFSET = 0;
+    private static final int SEQUENCE_OFFSET = 8;
+    private static final int PRIORITY_OFFSET = 16;
+    private static final int CODE_OFFSET = 20;
+    private static final int REFERENCE_OFFSET = 24;
+    
+    private static final int SEGMENT_RECORDS_BITS = 20;
+    private static final int SEGMENT_RECORDS = 1 << SEGMENT_RECORDS_BITS;
+    private static final int SEGMENT_SIZE = SEGMENT_RECORDS * RECORD_SIZE;
+    
+    private ByteBuffer[] segments = new ByteBuffer[16];
+    private int segmentsCount = 0;
+    private RandomAccessFile eventsFile = null;
+    private FileChannel fileChannel = null;
+    
+    /**
+     * Heap will be stored in direct buffers.
+     */
+    public EHBasedOnDirectBuffers() {
+    }
+    
+    /**
+     * Heap will be stored in the given file, mapped in memory. The file is created if it does
+     * not exist, and its previous contents are discarded.
+     * @param file
+     * @throws IOException
+     */
+    public EHBasedOnDirectBuffers(File file) throws IOException {
+        if(file == null)
+            throw new IllegalArgumentException("Cannot store events in a null file");
+        eventsFile = new RandomAccessFile(file, "rw");
+        fileChannel = eventsFile.getChannel();
+        try {
+            fileChannel.truncate(0);
+        } catch (IOException exception) {
+            eventsFile.close();
+            throw exception;
+        }
+    }
+    
+    /**
+     * Drops all events and segments, and closes the events file if the heap was stored in one.
+     * The holder cannot be used afterwards.
+     */
+    @Override
+    public void close() throws IOException {
+        clear();
+        segments = null;
+        segmentsCount = 0;
+        if(eventsFile != null) {
+            fileChannel = null;
+            RandomAccessFile closed = eventsFile;
+            eventsFile = null;
+            closed.close();
+        }
+    }
+
+    @Override
+    void ensureCapacity(int entries) {
+        while(entries > segmentsCount * SEGMENT_RECORDS)
+            addSegment();
+    }
+
+    @Override
+    long time(int position) {
+        return segments[position >>> SEGMENT_RECORDS_BITS].getLong(offset(position) + TIME_OFFSET);
+    }
+
+    @Override
+    long sequence(int position) {
+        return segments[position >>> SEGMENT_RECORDS_BITS].getLong(offset(position) + SEQUENCE_OFFSET);
+    }
+
+    @Override
+    int priority(int position) {
+        return segments[position >>> SEGMENT_RECORDS_BITS].getInt(offset(position) + PRIORITY_OFFSET);
+    }
+
+    @Override
+    int code(int position) {
+        return segments[position >>> SEGMENT_RECORDS_BITS].getInt(offset(position) + CODE_OFFSET);
+    }
+
+    @Override
+    int reference(int position) {
+        return segments[position >>> SEGMENT_RECORDS_BITS].getInt(offset(position) + REFERENCE_OFFSET);
+    }
+
+    @Override
+    void write(int position, long time, int priority, long sequence, int code, int reference) {
+        ByteBuffer segment = segments[position >>> SEGMENT_RECORDS_BITS];
+        int offset = offset(position);
+        segment.putLong(offset + TIME_OFFSET, time);
+        segment.putLong(offset + SEQUENCE_OFFSET, sequence);
+        segment.putInt(offset + PRIORITY_OFFSET, priority);
+        segment.putInt(offset + CODE_OFFSET, code);
+        segment.putInt(offset + REFERENCE_OFFSET, reference);
+    }
+
+    @Override
+    int copy(int from, int to) {
+        int reference = reference(from);
+        write(to, time(from), priority(from), sequence(from), code(from), reference);
+        return reference;
+    }
+    
+    private static int offset(int position) {
+        return (position & (SEGMENT_RECORDS - 1)) * RECORD_SIZE;
+    }
+    
+    private void addSegment() {
+        if(segments == null)
+            throw new IllegalStateException("Cannot add events to a closed events holder");
+        if(segmentsCount == segments.length)
+            segments = Arrays.copyOf(segments, segmentsCount * 2);
+        ByteBuffer segment = null;
+        if(fileChannel == null) {
+            segment = ByteBuffer.allocateDirect(SEGMENT_SIZE);
+        } else {
+            try {
+                segment = fileChannel.map(FileChannel.MapMode.READ_WRITE, (long)segmentsCount * SEGMENT_SIZE, SEGMENT_SIZE);
+            } catch (IOException exception) {
+                throw new IllegalStateException("Could not map a new segment of the events file", exception);
+            }
+        }
+        segment.order(ByteOrder.nativeOrder());
+        segments[segmentsCount++] = segment;
+    }
+
+}
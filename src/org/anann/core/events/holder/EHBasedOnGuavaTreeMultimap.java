@@ -27,7 +27,7 @@ import org.anann.core.events.Event;
 
 import com.google.common.collect.TreeMultimap;
 
-public class EHBasedOnGuavaTreeMultimap implements EventsHolder {
+public class EHBasedOnGuavaTreeMultimap implements BatchEventsHolder {
     TreeMultimap<Event, Event> eventsMap = TreeMultimap.create(Event.ORDERER, Event.ABSOLUT_ORDERER);
     NavigableSet<Event> keys = eventsMap.keySet();
 
@@ -44,15 +44,27 @@ public class EHBasedOnGuavaTreeMultimap implements EventsHolder {
         boolean changed = simultEvents.remove(event);
         if(simultEvents.size() == 0)
             eventsMap.removeAll(event);
+        else if(changed)
+            replaceKey(event);
         return changed;
     }
 
+    @Override
+    public boolean reschedule(Event event, long newFiringTime) {
+        boolean found = remove(event);
+        event.setFiringTime(newFiringTime);
+        add(event);
+        return found;
+    }
+
     @Override
     public Event next() {
         NavigableSet<Event> simultEvents = simultEvents();
         if(simultEvents == null)
             return null;
         Event nextEvent = simultEvents.pollFirst();
+        if(!simultEvents.isEmpty())
+            replaceKey(nextEvent);
         return nextEvent;
     }
 
@@ -83,6 +95,30 @@ public class EHBasedOnGuavaTreeMultimap implements EventsHolder {
             throw new IllegalStateException("Empty set of events in guava TreeMultimap associated to key event " + keys.first());
         return simultEvents;
     }
+
+    @Override
+    public int nextSimultaneous(SimultaneousEvents batch) {
+        batch.clear();
+        NavigableSet<Event> simultEvents = simultEvents();
+        if(simultEvents == null)
+            return 0;
+        for(Event event: simultEvents)
+            batch.addEvent(event);
+        // Clearing the view removes the key too, without the copy made by removeAll
+        simultEvents.clear();
+        return batch.size();
+    }
+    
+    // The multimap keeps as key the first event added with each firing time and priority. Once that
+    // event leaves the holder it can be recycled and its firing time changed, which would break the
+    // multimap. So it is replaced as key by the last of its simultaneous events, that will be the last
+    // one to leave the holder.
+    protected void replaceKey(Event event) {
+        if(keys.floor(event) != event)
+            return;
+        SortedSet<Event> simultEvents = eventsMap.removeAll(event);
+        eventsMap.putAll(simultEvents.last(), simultEvents);
+    }
     
     protected NavigableSet<Event> simultEvents() {
         if(keys.isEmpty())
@@ -0,0 +1,212 @@
+/*
+ * Copyright 2013 Luis Rodero-Merino.
+ * 
+ * This file is part of Annan.
+ * 
+ * Annan is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Annan is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Annan.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package org.anann.core.events.holder;
+
+import java.util.Arrays;
+import java.util.SortedSet;
+
+import org.anann.core.events.Event;
+
+/**
+ * Array based d-ary heap where each event remembers its position in the heap
+ * (see {@link Event#getHolderIndex()}), so {@link #remove(Event)} and
+ * {@link #reschedule(Event, long)} take O(log n) time instead of the linear
+ * search done by {@link EHBasedOnPriorityQueue}. This makes this holder the
+ * right choice when events are cancelled or moved often (e.g. by timers).
+ * Events are ordered by {@link Event#ORDERER}, events with the same firing
+ * time and priority are returned in the same order they were added.
+ * An event can be stored only in one instance of this holder at the same time.
+ */
+public class EHBasedOnIndexedHeap implements BatchEventsHolder {
+    
+    public static final int DEFAULT_ARITY = 4;
+    private static final int INITIAL_CAPACITY = 1000;
+    
+    private final int arity;
+    private Event[] heap = new Event[INITIAL_CAPACITY];
+    // Insertion sequence number of each event in the heap, to break ties in FIFO order
+    private long[] sequences = new long[INITIAL_CAPACITY];
+    private int size = 0;
+    private long nextSequence = 0;
+    
+    public EHBasedOnIndexedHeap() {
+        this(DEFAULT_ARITY);
+    }
+    
+    public EHBasedOnIndexedHeap(int arity) {
+        if(arity < 2)
+            throw new IllegalArgumentException("Heap arity must be 2 or greater, cannot be " + arity);
+        this.arity = arity;
+    }
+
+    @Override
+    public void add(Event event) {
+        if(size == heap.length) {
+            heap = Arrays.copyOf(heap, size * 2);
+            sequences = Arrays.copyOf(sequences, size * 2);
+        }
+        siftUp(size++, event, nextSequence++);
+    }
+
+    @Override
+    public boolean remove(Event event) {
+        int index = indexOf(event);
+        if(index < 0)
+            return false;
+        removeAt(index);
+        return true;
+    }
+
+    @Override
+    public boolean reschedule(Event event, long newFiringTime) {
+        int index = indexOf(event);
+        if(index < 0) {
+            event.setFiringTime(newFiringTime);
+            add(event);
+            return false;
+        }
+        long oldFiringTime = event.getFiringTime();
+        event.setFiringTime(newFiringTime);
+        // A rescheduled event goes after the ones already stored with the same time and priority
+        long sequence = nextSequence++;
+        if(newFiringTime < oldFiringTime)
+            siftUp(index, event, sequence);
+        else
+            siftDown(index, event, sequence);
+        return true;
+    }
+
+    @Override
+    public Event next() {
+        if(size == 0)
+            return null;
+        Event event = heap[0];
+        removeAt(0);
+        return event;
+    }
+
+    @Override
+    public SortedSet<Event> nextSimultaneous() {
+        SimultaneousEvents simultaneousEvents = new SimultaneousEvents();
+        return (nextSimultaneous(simultaneousEvents) == 0) ? null : simultaneousEvents;
+    }
+
+    @Override
+    public int nextSimultaneous(SimultaneousEvents batch) {
+        batch.clear();
+        if(size == 0)
+            return 0;
+        Event nextEvent = next();
+        batch.addEvent(nextEvent);
+        while((size > 0) && nextEvent.isSimultaneous(heap[0]))
+            batch.addEvent(next());
+        return batch.size();
+    }
+
+    @Override
+    public Event peek() {
+        if(size == 0)
+            return null;
+        return heap[0];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        for(int i = 0; i < size; i++) {
+            heap[i].setHolderIndex(-1);
+            heap[i] = null;
+        }
+        size = 0;
+    }
+    
+    private int indexOf(Event event) {
+        int index = event.getHolderIndex();
+        if((index < 0) || (index >= size) || (heap[index] != event))
+            return -1;
+        return index;
+    }
+    
+    private void removeAt(int index) {
+        Event removed = heap[index];
+        removed.setHolderIndex(-1);
+        int last = --size;
+        Event lastEvent = heap[last];
+        long lastSequence = sequences[last];
+        heap[last] = null;
+        if(index == last)
+            return;
+        // The last event is moved to the hole, it may need to go up or down
+        if((index > 0) && before(lastEvent, lastSequence, heap[(index - 1) / arity], sequences[(index - 1) / arity]))
+            siftUp(index, lastEvent, lastSequence);
+        else
+            siftDown(index, lastEvent, lastSequence);
+    }
+    
+    // Places event at the given hole, or at some ancestor of it
+    private void siftUp(int index, Event event, long sequence) {
+        while(index > 0) {
+            int parent = (index - 1) / arity;
+            if(!before(event, sequence, heap[parent], sequences[parent]))
+                break;
+            place(index, heap[parent], sequences[parent]);
+            index = parent;
+        }
+        place(index, event, sequence);
+    }
+    
+    // Places event at the given hole, or at some descendant of it
+    private void siftDown(int index, Event event, long sequence) {
+        while(true) {
+            int firstChild = index * arity + 1;
+            if(firstChild >= size)
+                break;
+            int lastChild = Math.min(firstChild + arity, size);
+            int minChild = firstChild;
+            for(int child = firstChild + 1; child < lastChild; child++)
+                if(before(heap[child], sequences[child], heap[minChild], sequences[minChild]))
+                    minChild = child;
+            if(!before(heap[minChild], sequences[minChild], event, sequence))
+                break;
+            place(index, heap[minChild], sequences[minChild]);
+            index = minChild;
+        }
+        place(index, event, sequence);
+    }
+    
+    private void place(int index, Event event, long sequence) {
+        heap[index] = event;
+        sequences[index] = sequence;
+        event.setHolderIndex(index);
+    }
+    
+    private static boolean before(Event e1, long sequence1, Event e2, long sequence2) {
+        int order = Event.ORDERER.compare(e1, e2);
+        if(order != 0)
+            return order < 0;
+        return sequence1 < sequence2;
+    }
+
+}
@@ -0,0 +1,360 @@
+/*
+ * Copyright 2013 Luis Rodero-Merino.
+ * 
+ * This file is part of Annan.
+ * 
+ * Annan is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Annan is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Annan.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package org.anann.core.events.holder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.SortedSet;
+
+import org.anann.core.events.Event;
+
+/**
+ * Ladder queue (W.T. Tang, R.S.M. Goh and I.L.J. Thng, "Ladder queue: an O(1) priority
+ * queue structure for large-scale discrete event simulation", ACM TOMACS 2005).
+ * Events are kept in three tiers:
+ * <ul>
+ * <li>Top: unsorted list receiving all events to be fired in the far future (at or after
+ * {@link #topStart}).</li>
+ * <li>Ladder: rungs of buckets. When the ladder is empty the whole top is moved to the first
+ * rung, and a bucket holding too many events is spread in a new finer-grained rung instead of
+ * being sorted. This way bursts of events are split until they are small enough to be sorted
+ * cheaply, which makes this structure robust to skewed firing times distributions.</li>
+ * <li>Bottom: small sorted list with the events to be fired next.</li>
+ * </ul>
+ * Events with the same firing time and priority are returned in the same order they were
+ * added. As simultaneous events are together in the bottom list, {@link #nextSimultaneous()}
+ * does not need to sort them again.
+ * <p>
+ * Events are not indexed, so {@link #remove(Event)} (and thus {@link #reschedule(Event, long)})
+ * finds the tier, rung and bucket the event must be in from its firing time, and then looks for
+ * it linearly there. That is O(n) in the worst case, as the top and a bucket not spread yet can
+ * hold most events. Simulations cancelling or rescheduling many events should use
+ * {@link EHBasedOnIndexedHeap} instead.
+ */
+public class EHBasedOnLadderQueue implements BatchEventsHolder {
+    
+    // Buckets holding more events than this are spread into a new rung
+    private static final int THRESHOLD = 50;
+    private static final int MAX_RUNGS = 8;
+    
+    private int size = 0;
+    
+    // Top
+    private List<Event> top = new ArrayList<Event>();
+    private long topStart = 0;
+    private long topMin = Long.MAX_VALUE;
+    private long topMax = Long.MIN_VALUE;
+    
+    // Ladder, rungs[0] is the one with the widest buckets
+    private Rung[] rungs = new Rung[MAX_RUNGS];
+    private int rungsCount = 0;
+    
+    // Bottom
+    private Node bottomHead = null;
+    private Node bottomTail = null;
+    
+    public EHBasedOnLadderQueue() {
+        for(int i = 0; i < MAX_RUNGS; i++)
+            rungs[i] = new Rung();
+    }
+
+    @Override
+    public void add(Event event) {
+        long time = event.getFiringTime();
+        size++;
+        if(time >= topStart) {
+            top.add(event);
+            if(time < topMin)
+                topMin = time;
+            if(time > topMax)
+                topMax = time;
+            return;
+        }
+        int rung = rungFor(time);
+        if(rung >= 0) {
+            rungs[rung].add(event);
+            return;
+        }
+        addToBottom(event);
+    }
+
+    @Override
+    public boolean remove(Event event) {
+        long time = event.getFiringTime();
+        boolean removed = false;
+        if(time >= topStart) {
+            removed = top.remove(event);
+        } else {
+            int rung = rungFor(time);
+            if(rung >= 0)
+                removed = rungs[rung].remove(event);
+            else
+                removed = removeFromBottom(event);
+        }
+        if(removed)
+            size--;
+        return removed;
+    }
+
+    @Override
+    public boolean reschedule(Event event, long newFiringTime) {
+        boolean found = remove(event);
+        event.setFiringTime(newFiringTime);
+        add(event);
+        return found;
+    }
+
+    @Override
+    public Event next() {
+        if(!fillBottom())
+            return null;
+        return pollBottom();
+    }
+
+    @Override
+    public SortedSet<Event> nextSimultaneous() {
+        SimultaneousEvents simultaneousEvents = new SimultaneousEvents();
+        return (nextSimultaneous(simultaneousEvents) == 0) ? null : simultaneousEvents;
+    }
+
+    @Override
+    public int nextSimultaneous(SimultaneousEvents batch) {
+        batch.clear();
+        if(!fillBottom())
+            return 0;
+        Event nextEvent = pollBottom();
+        batch.addEvent(nextEvent);
+        while((bottomHead != null) && nextEvent.isSimultaneous(bottomHead.event))
+            batch.addEvent(pollBottom());
+        return batch.size();
+    }
+
+    @Override
+    public Event peek() {
+        if(!fillBottom())
+            return null;
+        return bottomHead.event;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        size = 0;
+        top.clear();
+        topStart = 0;
+        topMin = Long.MAX_VALUE;
+        topMax = Long.MIN_VALUE;
+        for(int i = 0; i < rungsCount; i++)
+            rungs[i].clear();
+        rungsCount = 0;
+        bottomHead = null;
+        bottomTail = null;
+    }
+    
+    // Rung where an event to be fired at the given time must be, -1 if it belongs to bottom
+    private int rungFor(long time) {
+        for(int i = 0; i < rungsCount; i++)
+            if(time >= rungs[i].currentStart())
+                return i;
+        return -1;
+    }
+    
+    /**
+     * Makes sure that bottom contains the next events to be fired, moving them from
+     * the ladder (and moving the top to the ladder if the ladder is empty).
+     * @return {@code false} if there are no events at all.
+     */
+    protected boolean fillBottom() {
+        while(bottomHead == null) {
+            if(rungsCount == 0) {
+                if(top.isEmpty())
+                    return false;
+                transferTop();
+                continue;
+            }
+            Rung rung = rungs[rungsCount - 1];
+            List<Event> bucket = rung.pollNextBucket();
+            if(bucket == null) {
+                rungsCount--;
+                continue;
+            }
+            if((bucket.size() > THRESHOLD) && (rung.width > 1) && (rungsCount < MAX_RUNGS)) {
+                // Too many events, spreading them in a new rung
+                long bucketStart = rung.start + (rung.current - 1) * rung.width;
+                long width = ceilDiv(rung.width, bucket.size());
+                rungs[rungsCount++].init(bucketStart, width, (int)ceilDiv(rung.width, width), bucket);
+                continue;
+            }
+            sortIntoBottom(bucket);
+        }
+        return true;
+    }
+    
+    protected void transferTop() {
+        if(top.size() <= THRESHOLD) {
+            sortIntoBottom(top);
+            topStart = topMax + 1;
+        } else {
+            long range = topMax - topMin + 1;
+            long width = ceilDiv(range, top.size());
+            int bucketsCount = (int)ceilDiv(range, width);
+            rungs[rungsCount++].init(topMin, width, bucketsCount, top);
+            topStart = topMin + bucketsCount * width;
+        }
+        top = new ArrayList<Event>();
+        topMin = Long.MAX_VALUE;
+        topMax = Long.MIN_VALUE;
+    }
+    
+    // Bottom must be empty
+    private void sortIntoBottom(List<Event> events) {
+        // Stable sort, events with same time and priority keep their insertion order
+        Collections.sort(events, Event.ORDERER);
+        for(Event event: events) {
+            Node node = new Node(event);
+            if(bottomTail == null)
+                bottomHead = node;
+            else
+                bottomTail.next = node;
+            node.previous = bottomTail;
+            bottomTail = node;
+        }
+    }
+    
+    // Bottom is sorted, new events are likely to go at the end so we search backwards
+    private void addToBottom(Event event) {
+        Node node = new Node(event);
+        Node previous = bottomTail;
+        while((previous != null) && (Event.ORDERER.compare(previous.event, event) > 0))
+            previous = previous.previous;
+        node.previous = previous;
+        if(previous == null) {
+            node.next = bottomHead;
+            bottomHead = node;
+        } else {
+            node.next = previous.next;
+            previous.next = node;
+        }
+        if(node.next == null)
+            bottomTail = node;
+        else
+            node.next.previous = node;
+    }
+    
+    private boolean removeFromBottom(Event event) {
+        for(Node node = bottomHead; node != null; node = node.next) {
+            if(node.event != event)
+                continue;
+            unlink(node);
+            return true;
+        }
+        return false;
+    }
+    
+    private Event pollBottom() {
+        Node head = bottomHead;
+        unlink(head);
+        size--;
+        return head.event;
+    }
+    
+    private void unlink(Node node) {
+        if(node.previous == null)
+            bottomHead = node.next;
+        else
+            node.previous.next = node.next;
+        if(node.next == null)
+            bottomTail = node.previous;
+        else
+            node.next.previous = node.previous;
+    }
+    
+    private static long ceilDiv(long dividend, long divisor) {
+        return (dividend + divisor - 1) / divisor;
+    }
+    
+    static private class Rung {
+        private long start = 0;
+        private long width = 1;
+        private List<Event>[] buckets = null;
+        // First bucket not dequeued yet
+        private int current = 0;
+        
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        void init(long start, long width, int bucketsCount, List<Event> events) {
+            this.start = start;
+            this.width = width;
+            this.buckets = new List[bucketsCount];
+            this.current = 0;
+            for(Event event: events)
+                add(event);
+        }
+        
+        long currentStart() {
+            return start + current * width;
+        }
+        
+        void add(Event event) {
+            int index = (int)((event.getFiringTime() - start) / width);
+            if(buckets[index] == null)
+                buckets[index] = new ArrayList<Event>();
+            buckets[index].add(event);
+        }
+        
+        boolean remove(Event event) {
+            List<Event> bucket = buckets[(int)((event.getFiringTime() - start) / width)];
+            if(bucket == null)
+                return false;
+            return bucket.remove(event);
+        }
+        
+        // Returns null if all buckets have been dequeued already
+        List<Event> pollNextBucket() {
+            while(current < buckets.length) {
+                List<Event> bucket = buckets[current];
+                buckets[current++] = null;
+                if((bucket != null) && !bucket.isEmpty())
+                    return bucket;
+            }
+            return null;
+        }
+        
+        void clear() {
+            buckets = null;
+            current = 0;
+        }
+    }
+    
+    static private class Node {
+        private final Event event;
+        private Node previous = null;
+        private Node next = null;
+        Node(Event event) {
+            this.event = event;
+        }
+    }
+
+}
@@ -0,0 +1,371 @@
+/*
+ * Copyright 2013 Luis Rodero-Merino.
+ * 
+ * This file is part of Annan.
+ * 
+ * Annan is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Annan is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Annan.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+
+package org.anann.core.events.holder;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.SortedSet;
+
+import org.anann.core.events.Event;
+
+/**
+ * Two level holder: events are split in groups (by default, one per event handler, so each
+ * {@link org.anann.core.Entity} has its own group), each group keeps its events in a local heap,
+ * and only the first event of each group is in the global heap. So the global heap holds as many
+ * items as groups with events, instead of all events, which makes its operations cheaper and more
+ * cache friendly when handlers schedule many future events each. When the first event of a group
+ * changes, the group is moved to its new position in the global heap.
+ * Events are returned in the same order as {@link EHBasedOnIndexedHeap}: by {@link Event#ORDERER},
+ * and in the same order they were added if they have the same firing time and priority.
+ * The group of an event must not change while it is in the holder, and an event can be stored
+ * only in one instance of this holder at the same time (each event remembers its position in the
+ * local heap, see {@link Event#getHolderIndex()}).
+ * Only groups with events are kept: a group left empty is dropped, and its heap kept to be reused
+ * by the next new group, so handlers that are discarded do not leave their groups behind.
+ */
+public class EHBasedOnLocalHeaps implements BatchEventsHolder {
+    
+    /**
+     * Tells the group of each event. Groups are compared by identity.
+     */
+    public interface Grouper {
+        public Object groupOf(Event event);
+    }
+    
+    public static final Grouper BY_HANDLER = new Grouper() {
+        @Override
+        public Object groupOf(Event event) {
+            return event.getEventHandler();
+        }
+    };
+    
+    private static final int INITIAL_CAPACITY = 16;
+    
+    private final Grouper grouper;
+    // Groups with events, by key
+    private final Map<Object, Group> groups = new IdentityHashMap<Object, Group>();
+    // Empty groups to be reused, there are never more than the most groups with events held at once
+    private Group[] spareGroups = new Group[INITIAL_CAPACITY];
+    private int spareGroupsCount = 0;
+    // Global binary heap of the groups that have events, ordered by their first event
+    private Group[] heads = new Group[INITIAL_CAPACITY];
+    private int headsCount = 0;
+    private int size = 0;
+    // Shared by all groups, so ties are broken the same way in local and global heaps
+    private long nextSequence = 0;
+    
+    public EHBasedOnLocalHeaps() {
+        this(BY_HANDLER);
+    }
+    
+    public EHBasedOnLocalHeaps(Grouper grouper) {
+        if(grouper == null)
+            throw new IllegalArgumentException("Cannot create a " + EHBasedOnLocalHeaps.class.getName() + " instance with null grouper");
+        this.grouper = grouper;
+    }
+    
+    /**
+     * @return Number of groups that have events, i.e. size of the global heap.
+     */
+    public int groupsWithEvents() {
+        return headsCount;
+    }
+
+    @Override
+    public void add(Event event) {
+        Object key = grouper.groupOf(event);
+        Group group = groups.get(key);
+        if(group == null) {
+            if(spareGroupsCount == 0) {
+                group = new Group();
+            } else {
+                group = spareGroups[--spareGroupsCount];
+                spareGroups[spareGroupsCount] = null;
+            }
+            group.key = key;
+            groups.put(key, group);
+        }
+        group.add(event, nextSequence++);
+        size++;
+        headChanged(group);
+    }
+
+    @Override
+    public boolean remove(Event event) {
+        Group group = groups.get(grouper.groupOf(event));
+        if(group == null)
+            return false;
+        int index = group.indexOf(event);
+        if(index < 0)
+            return false;
+        group.removeAt(index);
+        size--;
+        headChanged(group);
+        return true;
+    }
+
+    @Override
+    public boolean reschedule(Event event, long newFiringTime) {
+        Group group = groups.get(grouper.groupOf(event));
+        int index = (group == null) ? -1 : group.indexOf(event);
+        if(index < 0) {
+            event.setFiringTime(newFiringTime);
+            add(event);
+            return false;
+        }
+        group.reschedule(index, newFiringTime, nextSequence++);
+        headChanged(group);
+        return true;
+    }
+
+    @Override
+    public Event next() {
+        if(headsCount == 0)
+            return null;
+        Group group = heads[0];
+        Event event = group.heap[0];
+        group.removeAt(0);
+        size--;
+        headChanged(group);
+        return event;
+    }
+
+    @Override
+    public SortedSet<Event> nextSimultaneous() {
+        SimultaneousEvents simultaneousEvents = new SimultaneousEvents();
+        return (nextSimultaneous(simultaneousEvents) == 0) ? null : simultaneousEvents;
+    }
+
+    @Override
+    public int nextSimultaneous(SimultaneousEvents batch) {
+        batch.clear();
+        if(headsCount == 0)
+            return 0;
+        Event nextEvent = next();
+        batch.addEvent(nextEvent);
+        while((headsCount > 0) && nextEvent.isSimultaneous(heads[0].heap[0]))
+            batch.addEvent(next());
+        return batch.size();
+    }
+
+    @Override
+    public Event peek() {
+        return (headsCount == 0) ? null : heads[0].heap[0];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        for(Group group: groups.values())
+            drop(group);
+        groups.clear();
+        Arrays.fill(heads, 0, headsCount, null);
+        headsCount = 0;
+        size = 0;
+    }
+    
+    // Moves the group to its place in the global heap, after its first event has changed
+    private void headChanged(Group group) {
+        int index = group.headIndex;
+        if(group.size == 0) {
+            if(index >= 0)
+                removeHead(index);
+            groups.remove(group.key);
+            drop(group);
+            return;
+        }
+        if(index < 0) {
+            if(headsCount == heads.length)
+                heads = Arrays.copyOf(heads, headsCount * 2);
+            siftUpHead(headsCount++, group);
+        } else if((index > 0) && group.before(heads[(index - 1) >>> 1])) {
+            siftUpHead(index, group);
+        } else {
+            siftDownHead(index, group);
+        }
+    }
+    
+    // Keeps the empty group to be reused (clear() removes the group from the map itself)
+    private void drop(Group group) {
+        group.clear();
+        group.key = null;
+        if(spareGroupsCount == spareGroups.length)
+            spareGroups = Arrays.copyOf(spareGroups, spareGroupsCount * 2);
+        spareGroups[spareGroupsCount++] = group;
+    }
+    
+    private void removeHead(int index) {
+        heads[index].headIndex = -1;
+        int last = --headsCount;
+        Group lastGroup = heads[last];
+        heads[last] = null;
+        if(index == last)
+            return;
+        if((index > 0) && lastGroup.before(heads[(index - 1) >>> 1]))
+            siftUpHead(index, lastGroup);
+        else
+            siftDownHead(index, lastGroup);
+    }
+    
+    private void siftUpHead(int index, Group group) {
+        while(index > 0) {
+            int parent = (index - 1) >>> 1;
+            if(!group.before(heads[parent]))
+                break;
+            placeHead(index, heads[parent]);
+            index = parent;
+        }
+        placeHead(index, group);
+    }
+    
+    private void siftDownHead(int index, Group group) {
+        while(true) {
+            int child = 2 * index + 1;
+            if(child >= headsCount)
+                break;
+            if((child + 1 < headsCount) && heads[child + 1].before(heads[child]))
+                child++;
+            if(!heads[child].before(group))
+                break;
+            placeHead(index, heads[child]);
+            index = child;
+        }
+        placeHead(index, group);
+    }
+    
+    private void placeHead(int index, Group group) {
+        heads[index] = group;
+        group.headIndex = index;
+    }
+    
+    private static boolean before(Event e1, long sequence1, Event e2, long sequence2) {
+        int order = Event.ORDERER.compare(e1, e2);
+        if(order != 0)
+            return order < 0;
+        return sequence1 < sequence2;
+    }
+    
+    /**
+     * Local binary heap of the events of a group.
+     */
+    private static class Group {
+        
+        private Event[] heap = new Event[INITIAL_CAPACITY];
+        private long[] sequences = new long[INITIAL_CAPACITY];
+        private int size = 0;
+        // Key of the group in the map, null while spare
+        private Object key = null;
+        // Position in the global heap, -1 if the group has no events
+        private int headIndex = -1;
+        
+        boolean before(Group group) {
+            return EHBasedOnLocalHeaps.before(heap[0], sequences[0], group.heap[0], group.sequences[0]);
+        }
+        
+        void add(Event event, long sequence) {
+            if(size == heap.length) {
+                heap = Arrays.copyOf(heap, size * 2);
+                sequences = Arrays.copyOf(sequences, size * 2);
+            }
+            siftUp(size++, event, sequence);
+        }
+        
+        int indexOf(Event event) {
+            int index = event.getHolderIndex();
+            if((index < 0) || (index >= size) || (heap[index] != event))
+                return -1;
+            return index;
+        }
+        
+        void reschedule(int index, long newFiringTime, long sequence) {
+            Event event = heap[index];
+            long oldFiringTime = event.getFiringTime();
+            event.setFiringTime(newFiringTime);
+            // A rescheduled event goes after the ones already stored with the same time and priority
+            if(newFiringTime < oldFiringTime)
+                siftUp(index, event, sequence);
+            else
+                siftDown(index, event, sequence);
+        }
+        
+        void removeAt(int index) {
+            heap[index].setHolderIndex(-1);
+            int last = --size;
+            Event lastEvent = heap[last];
+            long lastSequence = sequences[last];
+            heap[last] = null;
+            if(index == last)
+                return;
+            if((index > 0) && EHBasedOnLocalHeaps.before(lastEvent, lastSequence, heap[(index - 1) >>> 1], sequences[(index - 1) >>> 1]))
+                siftUp(index, lastEvent, lastSequence);
+            else
+                siftDown(index, lastEvent, lastSequence);
+        }
+        
+        void clear() {
+            for(int i = 0; i < size; i++) {
+                heap[i].setHolderIndex(-1);
+                heap[i] = null;
+            }
+            size = 0;
+            headIndex = -1;
+        }
+        
+        private void siftUp(int index, Event event, long sequence) {
+            while(index > 0) {
+                int parent = (index - 1) >>> 1;
+                if(!EHBasedOnLocalHeaps.before(event, sequence, heap[parent], sequences[parent]))
+                    break;
+                place(index, heap[parent], sequences[parent]);
+                index = parent;
+            }
+            place(index, event, sequence);
+        }
+        
+        private void siftDown(int index, Event event, long sequence) {
+            while(true) {
+                int child = 2 * index + 1;
+                if(child >= size)
+                    break;
+                if((child + 1 < size) && EHBasedOnLocalHeaps.before(heap[child + 1], sequences[child + 1], heap[child], sequences[child]))
+                    child++;
+                if(!EHBasedOnLocalHeaps.before(heap[child], sequences[child], event, sequence))
+                    break;
+                place(index, heap[child], sequences[child]);
+                index = child;
+            }
+            place(index, event, sequence);
+        }
+        
+        private void place(int index, Event event, long sequence) {
+            heap[index] = event;
+            sequences[index] = sequence;
+            event.setHolderIndex(index);
+        }
+    }
+
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright 2013 Luis Rodero-Merino.
+ * 
+ * This file is part of Annan.
+ * 
+ * Annan is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Annan is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Annan.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package org.anann.core.events.holder;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.anann.core.events.Event;
+
+/**
+ * Relaxed concurrent priority queue (MultiQueue): events are spread among several heaps, each one with
+ * its own lock. Events are added to a random heap, and {@link #nextRelaxed()} takes the first event of the
+ * best of two random heaps, so threads seldom compete for the same lock, at the price of not always getting
+ * the first event. The rest of the methods are exact, but they need to look at every heap.
+ * The heap of each event is kept as its holder index.
+ */
+public class EHBasedOnMultiQueue implements RelaxedEventsHolder, BatchEventsHolder {
+    
+    public static final int DEFAULT_QUEUES = 4 * Runtime.getRuntime().availableProcessors();
+    
+    private final Queue[] queues;
+    
+    public EHBasedOnMultiQueue() {
+        this(DEFAULT_QUEUES);
+    }
+    
+    public EHBasedOnMultiQueue(int queuesCount) {
+        if(queuesCount <= 0)
+            throw new IllegalArgumentException("Number of queues must be positive, cannot be " + queuesCount);
+        queues = new Queue[queuesCount];
+        for(int i = 0; i < queuesCount; i++)
+            queues[i] = new Queue();
+    }
+
+    @Override
+    public void add(Event event) {
+        int index = (queues.length == 1) ? 0 : ThreadLocalRandom.current().nextInt(queues.length);
+        Queue queue = queues[index];
+        queue.lock.lock();
+        try {
+            event.setHolderIndex(index);
+            queue.events.add(event);
+            queue.updateHead();
+        } finally {
+            queue.lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(Event event) {
+        int index = event.getHolderIndex();
+        if((index < 0) || (index >= queues.length))
+            return false;
+        Queue queue = queues[index];
+        queue.lock.lock();
+        try {
+            if(!queue.events.remove(event))
+                return false;
+            queue.updateHead();
+            return true;
+        } finally {
+            queue.lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean reschedule(Event event, long newFiringTime) {
+        boolean found = remove(event);
+        event.setFiringTime(newFiringTime);
+        add(event);
+        return found;
+    }
+
+    @Override
+    public Event nextRelaxed() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        // A few tries with two random queues, then an exact search
+        for(int tries = 0; tries < 4; tries++) {
+            Queue first = queues[random.nextInt(queues.length)];
+            Queue second = queues[random.nextInt(queues.length)];
+            Queue best = (second.headTime < first.headTime) ? second : first;
+            if(best.headTime == Long.MAX_VALUE)
+                continue;
+            if(!best.lock.tryLock())
+                continue;
+            try {
+                Event event = best.events.poll();
+                if(event != null) {
+                    best.updateHead();
+                    return event;
+                }
+            } finally {
+                best.lock.unlock();
+            }
+        }
+        return next();
+    }
+
+    @Override
+    public long lowerBound() {
+        long lowerBound = Long.MAX_VALUE;
+        for(Queue queue: queues)
+            lowerBound = Math.min(lowerBound, queue.headTime);
+        return lowerBound;
+    }
+
+    /**
+     * Takes the first event of the heap whose first event is the earliest, it is exact unless
+     * other threads are adding events at the same time.
+     */
+    @Override
+    public Event next() {
+        while(true) {
+            Queue best = null;
+            Event bestEvent = null;
+            for(Queue queue: queues) {
+                queue.lock.lock();
+                try {
+                    Event head = queue.events.peek();
+                    if((head != null) && ((bestEvent == null) || (Event.ORDERER.compare(head, bestEvent) < 0))) {
+                        best = queue;
+                        bestEvent = head;
+                    }
+                } finally {
+                    queue.lock.unlock();
+                }
+            }
+            if(best == null)
+                return null;
+            best.lock.lock();
+            try {
+                // Some other thread could have taken it meanwhile
+                if(best.events.peek() == bestEvent) {
+                    best.events.poll();
+                    best.updateHead();
+                    return bestEvent;
+                }
+            } finally {
+                best.lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public SimultaneousEvents nextSimultaneous() {
+        SimultaneousEvents simultaneousEvents = new SimultaneousEvents();
+        return (nextSimultaneous(simultaneousEvents) == 0) ? null : simultaneousEvents;
+    }
+
+    @Override
+    public int nextSimultaneous(SimultaneousEvents batch) {
+        batch.clear();
+        Event head = next();
+        if(head == null)
+            return 0;
+        batch.addEvent(head);
+        for(Event event = peek(); (event != null) && head.isSimultaneous(event); event = peek())
+            if(remove(event))
+                batch.addEvent(event);
+        return batch.size();
+    }
+
+    @Override
+    public Event peek() {
+        Event first = null;
+        for(Queue queue: queues) {
+            queue.lock.lock();
+            try {
+                Event head = queue.events.peek();
+                if((head != null) && ((first == null) || (Event.ORDERER.compare(head, first) < 0)))
+                    first = head;
+            } finally {
+                queue.lock.unlock();
+            }
+        }
+        return first;
+    }
+
+    @Override
+    public int size() {
+        int size = 0;
+        for(Queue queue: queues) {
+            queue.lock.lock();
+            try {
+                size += queue.events.size();
+            } finally {
+                queue.lock.unlock();
+            }
+        }
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        for(Queue queue: queues) {
+            queue.lock.lock();
+            try {
+                queue.events.clear();
+                queue.updateHead();
+            } finally {
+                queue.lock.unlock();
+            }
+        }
+    }
+    
+    private static class Queue {
+        final ReentrantLock lock = new ReentrantLock();
+        final PriorityQueue<Event> events = new PriorityQueue<Event>(64, Event.ORDERER);
+        // Firing time of the first event, so it can be read without locking
+        volatile long headTime = Long.MAX_VALUE;
+        
+        void updateHead() {
+            Event head = events.peek();
+            headTime = (head == null) ? Long.MAX_VALUE : head.getFiringTime();
+        }
+    }
+
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2013 Luis Rodero-Merino.
+ * 
+ * This file is part of Annan.
+ * 
+ * Annan is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Annan is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Annan.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package org.anann.core.events.holder;
+
+import java.util.Arrays;
+
+import org.anann.core.events.Event;
+
+/**
+ * d-ary heap laid out as a 'struct of arrays': the keys of the events (firing time, priority
+ * and insertion sequence) are kept in parallel primitive arrays, so comparing and moving
+ * entries during sift operations never touches the {@link Event} instances.
+ * Each entry of the heap also keeps the rest of the event data: for compact events (see
+ * {@link CompactEventsHolder}) just the event code and handler id, otherwise the slot of the
+ * {@link Event} instance. Compact events do not exist as objects until they are returned
+ * by {@link #next()} or {@link #nextSimultaneous()}, which keeps the heap memory used by large
+ * numbers of pending events down to a few dozens of bytes per event.
+ * {@link Event} instances added remember their slot (see {@link Event#getHolderIndex()}), so
+ * they can be removed or rescheduled in O(log n) time.
+ * Events with the same firing time and priority are returned in the same order they were added.
+ */
+public class EHBasedOnPrimitiveArrays extends AbstractCompactHeap {
+    
+    private static final int INITIAL_CAPACITY = 1024;
+    
+    // Heap, stored as parallel arrays
+    private long[] times = new long[INITIAL_CAPACITY];
+    private int[] priorities = new int[INITIAL_CAPACITY];
+    private long[] sequences = new long[INITIAL_CAPACITY];
+    private int[] codes = new int[INITIAL_CAPACITY];
+    private int[] references = new int[INITIAL_CAPACITY];
+
+    @Override
+    void ensureCapacity(int entries) {
+        if(entries <= times.length)
+            return;
+        int capacity = Math.max(entries, times.length * 2);
+        times = Arrays.copyOf(times, capacity);
+        priorities = Arrays.copyOf(priorities, capacity);
+        sequences = Arrays.copyOf(sequences, capacity);
+        codes = Arrays.copyOf(codes, capacity);
+        references = Arrays.copyOf(references, capacity);
+    }
+
+    @Override
+    long time(int position) {
+        return times[position];
+    }
+
+    @Override
+    int priority(int position) {
+        return priorities[position];
+    }
+
+    @Override
+    long sequence(int position) {
+        return sequences[position];
+    }
+
+    @Override
+    int code(int position) {
+        return codes[position];
+    }
+
+    @Override
+    int reference(int position) {
+        return references[position];
+    }
+
+    @Override
+    void write(int position, long time, int priority, long sequence, int code, int reference) {
+        times[position] = time;
+        priorities[position] = priority;
+        sequences[position] = sequence;
+        codes[position] = code;
+        references[position] = reference;
+    }
+
+    @Override
+    int copy(int from, int to) {
+        times[to] = times[from];
+        priorities[to] = priorities[from];
+        sequences[to] = sequences[from];
+        codes[to] = codes[from];
+        int reference = references[from];
+        references[to] = reference;
+        return reference;
+    }
+
+}
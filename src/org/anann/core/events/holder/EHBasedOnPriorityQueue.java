@@ -40,6 +40,14 @@ public class EHBasedOnPriorityQueue implements EventsHolder {
         return events.remove(event);
     }
 
+    @Override
+    public boolean reschedule(Event event, long newFiringTime) {
+        boolean found = remove(event);
+        event.setFiringTime(newFiringTime);
+        add(event);
+        return found;
+    }
+
     @Override
     public Event next() {
         return events.poll();
@@ -0,0 +1,296 @@
+/*
+ * Copyright 2013 Luis Rodero-Merino.
+ * 
+ * This file is part of Annan.
+ * 
+ * Annan is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Annan is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Annan.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package org.anann.core.events.holder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SortedSet;
+
+import org.anann.core.events.Event;
+
+/**
+ * Radix heap (R.K. Ahuja, K. Mehlhorn, J. Orlin and R.E. Tarjan, "Faster algorithms for the
+ * shortest path problem", JACM 1990) keyed on the (firing time, priority) pair of events.
+ * It exploits that simulation time never goes backwards: each event is stored in the bucket
+ * given by the highest bit in which its key differs from the key of the last event returned.
+ * Only when the first bucket becomes empty, the next non-empty bucket is split among the
+ * lower ones. Both adding and removing take constant amortized time, as each event can be
+ * moved to lower buckets at most as many times as bits are in the key.
+ * An event is found in O(1) time when removed, as its bucket can be computed from its key, and
+ * its position in the bucket is kept in the event (see {@link Event#getHolderIndex()}).
+ * <p>
+ * Events to be fired at the same time than the last event returned but with a higher priority
+ * break the monotonicity of the heap. They are checked for, and kept apart in a small sorted
+ * list to be returned first. If the simulation is declared monotone (see
+ * {@link org.anann.core.Simulator#setMonotone(boolean)}) that check is skipped.
+ * <p>
+ * {@link #peek()} does not move the last key (that would misplace events added afterwards with
+ * earlier keys), it looks for the minimum in the first non-empty bucket and remembers it until
+ * it is removed or some event with an earlier key is added.
+ * <p>
+ * Simultaneous events are returned in no particular (although deterministic) order.
+ * An event can be stored only in one instance of this holder at the same time.
+ */
+public class EHBasedOnRadixHeap implements MonotoneEventsHolder, BatchEventsHolder {
+    
+    // Bucket 0 for the last key, 32 buckets for keys differing only in priority, 64 for firing times
+    private static final int PRIORITY_BUCKETS_START = 1;
+    private static final int TIME_BUCKETS_START = PRIORITY_BUCKETS_START + 32;
+    private static final int BUCKETS_COUNT = TIME_BUCKETS_START + 64;
+    private static final int INITIAL_BUCKET_CAPACITY = 16;
+    
+    private Event[][] buckets = new Event[BUCKETS_COUNT][];
+    private int[] bucketSizes = new int[BUCKETS_COUNT];
+    private int size = 0;
+    
+    // Key of the last event returned
+    private long lastTime = 0;
+    private long lastPriorityKey = 0;
+    
+    // Events that break monotonicity, sorted backwards (next one is the last)
+    private List<Event> earlyEvents = new ArrayList<Event>();
+    private boolean monotone = false;
+    
+    // Next event in the buckets, as found by peek() when the first bucket was empty (null if unknown)
+    private Event peeked = null;
+    
+    public EHBasedOnRadixHeap() {
+        for(int i = 0; i < BUCKETS_COUNT; i++)
+            buckets[i] = new Event[INITIAL_BUCKET_CAPACITY];
+    }
+
+    @Override
+    public void setMonotone(boolean monotone) {
+        this.monotone = monotone;
+    }
+
+    @Override
+    public void add(Event event) {
+        size++;
+        long time = event.getFiringTime();
+        long priorityKey = priorityKey(event.getPriority());
+        if(!monotone && ((time < lastTime) || ((time == lastTime) && (priorityKey < lastPriorityKey)))) {
+            addEarly(event);
+            return;
+        }
+        store(bucketIndex(time, priorityKey), event);
+        if((peeked != null) && !after(event, peeked))
+            peeked = event;
+    }
+
+    @Override
+    public boolean remove(Event event) {
+        int bucket = bucketIndex(event.getFiringTime(), priorityKey(event.getPriority()));
+        int index = event.getHolderIndex();
+        if((index >= 0) && (index < bucketSizes[bucket]) && (buckets[bucket][index] == event)) {
+            removeAt(bucket, index);
+            size--;
+            return true;
+        }
+        if(!monotone && earlyEvents.remove(event)) {
+            size--;
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public boolean reschedule(Event event, long newFiringTime) {
+        boolean found = remove(event);
+        event.setFiringTime(newFiringTime);
+        add(event);
+        return found;
+    }
+
+    @Override
+    public Event next() {
+        if(size == 0)
+            return null;
+        size--;
+        if(!earlyEvents.isEmpty())
+            return earlyEvents.remove(earlyEvents.size() - 1);
+        // The event returned by peek() must be the one taken, even if other events share its key
+        Event event = (bucketSizes[0] == 0) ? peeked : null;
+        fillFirstBucket();
+        return removeAt(0, (event == null) ? bucketSizes[0] - 1 : event.getHolderIndex());
+    }
+
+    @Override
+    public SortedSet<Event> nextSimultaneous() {
+        SimultaneousEvents simultaneousEvents = new SimultaneousEvents();
+        return (nextSimultaneous(simultaneousEvents) == 0) ? null : simultaneousEvents;
+    }
+
+    @Override
+    public int nextSimultaneous(SimultaneousEvents batch) {
+        batch.clear();
+        if(size == 0)
+            return 0;
+        if(!earlyEvents.isEmpty()) {
+            Event nextEvent = earlyEvents.remove(earlyEvents.size() - 1);
+            batch.addEvent(nextEvent);
+            while(!earlyEvents.isEmpty() && nextEvent.isSimultaneous(earlyEvents.get(earlyEvents.size() - 1)))
+                batch.addEvent(earlyEvents.remove(earlyEvents.size() - 1));
+            size -= batch.size();
+            return batch.size();
+        }
+        // All events in the first bucket have the same key, so they are simultaneous
+        fillFirstBucket();
+        Event[] bucket = buckets[0];
+        for(int i = 0; i < bucketSizes[0]; i++) {
+            bucket[i].setHolderIndex(-1);
+            batch.addEvent(bucket[i]);
+            bucket[i] = null;
+        }
+        size -= bucketSizes[0];
+        bucketSizes[0] = 0;
+        peeked = null;
+        return batch.size();
+    }
+
+    @Override
+    public Event peek() {
+        if(size == 0)
+            return null;
+        if(!earlyEvents.isEmpty())
+            return earlyEvents.get(earlyEvents.size() - 1);
+        if(bucketSizes[0] > 0)
+            return buckets[0][bucketSizes[0] - 1];
+        if(peeked == null) {
+            // Same event fillFirstBucket() would leave last in the first bucket
+            int bucket = firstNonEmptyBucket();
+            Event[] events = buckets[bucket];
+            for(int i = 0; i < bucketSizes[bucket]; i++)
+                if((peeked == null) || !after(events[i], peeked))
+                    peeked = events[i];
+        }
+        return peeked;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void clear() {
+        for(int bucket = 0; bucket < BUCKETS_COUNT; bucket++) {
+            for(int i = 0; i < bucketSizes[bucket]; i++) {
+                buckets[bucket][i].setHolderIndex(-1);
+                buckets[bucket][i] = null;
+            }
+            bucketSizes[bucket] = 0;
+        }
+        earlyEvents.clear();
+        peeked = null;
+        size = 0;
+        lastTime = 0;
+        lastPriorityKey = 0;
+    }
+    
+    // Higher priorities must go first, so the priority is flipped to an unsigned 32 bits key
+    private static long priorityKey(int priority) {
+        return (~(priority ^ Integer.MIN_VALUE)) & 0xFFFFFFFFL;
+    }
+    
+    private int bucketIndex(long time, long priorityKey) {
+        if(time != lastTime)
+            return TIME_BUCKETS_START + 63 - Long.numberOfLeadingZeros(time ^ lastTime);
+        if(priorityKey != lastPriorityKey)
+            return PRIORITY_BUCKETS_START + 63 - Long.numberOfLeadingZeros(priorityKey ^ lastPriorityKey);
+        return 0;
+    }
+    
+    /**
+     * If the first bucket is empty, looks for the first non-empty bucket, takes the minimum key
+     * in it as the new last key, and redistributes its events among the lower buckets.
+     * There must be some event in the buckets.
+     */
+    private void fillFirstBucket() {
+        if(bucketSizes[0] > 0)
+            return;
+        int bucket = firstNonEmptyBucket();
+        Event[] events = buckets[bucket];
+        int eventsCount = bucketSizes[bucket];
+        long minTime = Long.MAX_VALUE;
+        long minPriorityKey = Long.MAX_VALUE;
+        for(int i = 0; i < eventsCount; i++) {
+            long time = events[i].getFiringTime();
+            long priorityKey = priorityKey(events[i].getPriority());
+            if((time < minTime) || ((time == minTime) && (priorityKey < minPriorityKey))) {
+                minTime = time;
+                minPriorityKey = priorityKey;
+            }
+        }
+        lastTime = minTime;
+        lastPriorityKey = minPriorityKey;
+        // All events go to lower buckets, so this bucket array is not modified while they are moved
+        bucketSizes[bucket] = 0;
+        for(int i = 0; i < eventsCount; i++)
+            store(bucketIndex(events[i].getFiringTime(), priorityKey(events[i].getPriority())), events[i]);
+        Arrays.fill(events, 0, eventsCount, null);
+    }
+    
+    private int firstNonEmptyBucket() {
+        int bucket = 1;
+        while(bucketSizes[bucket] == 0)
+            bucket++;
+        return bucket;
+    }
+    
+    private static boolean after(Event e1, Event e2) {
+        return Event.ORDERER.compare(e1, e2) > 0;
+    }
+    
+    private void store(int bucket, Event event) {
+        int index = bucketSizes[bucket];
+        if(index == buckets[bucket].length)
+            buckets[bucket] = Arrays.copyOf(buckets[bucket], index * 2);
+        buckets[bucket][index] = event;
+        bucketSizes[bucket] = index + 1;
+        event.setHolderIndex(index);
+    }
+    
+    // The last event of the bucket is moved to fill the hole
+    private Event removeAt(int bucket, int index) {
+        Event[] events = buckets[bucket];
+        Event removed = events[index];
+        int last = --bucketSizes[bucket];
+        if(index != last) {
+            events[index] = events[last];
+            events[index].setHolderIndex(index);
+        }
+        events[last] = null;
+        removed.setHolderIndex(-1);
+        if(removed == peeked)
+            peeked = null;
+        return removed;
+    }
+    
+    private void addEarly(Event event) {
+        int insertAt = earlyEvents.size();
+        while((insertAt > 0) && (Event.ORDERER.compare(earlyEvents.get(insertAt - 1), event) <= 0))
+            insertAt--;
+        earlyEvents.add(insertAt, event);
+    }
+
+}
@@ -23,12 +23,11 @@ package org.anann.core.events.holder;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.SortedSet;
-import java.util.TreeSet;
 
 import org.anann.core.events.Event;
 import org.anann.core.events.EventHandler;
 
-public class EHManuallyProgrammed implements EventsHolder {
+public class EHManuallyProgrammed implements BatchEventsHolder {
     
     protected List<Event> events = new LinkedList<Event>();
     
@@ -123,6 +122,14 @@ public class EHManuallyProgrammed implements EventsHolder {
         return true;
     }
 
+    @Override
+    public boolean reschedule(Event event, long newFiringTime) {
+        boolean found = remove(event);
+        event.setFiringTime(newFiringTime);
+        add(event);
+        return found;
+    }
+
     @Override
     public Event next() {
         if(events.size() == 0)
@@ -133,18 +140,24 @@ public class EHManuallyProgrammed implements EventsHolder {
     
     @Override
     public SortedSet<Event> nextSimultaneous() {
+        SimultaneousEvents simultaneousEvents = new SimultaneousEvents();
+        return (nextSimultaneous(simultaneousEvents) == 0) ? null : simultaneousEvents;
+    }
+
+    @Override
+    public int nextSimultaneous(SimultaneousEvents batch) {
+        batch.clear();
         if(events.size() == 0)
-            return null;
+            return 0;
         Event nextEvent = events.remove(0);
-        SortedSet<Event> simultaneousEvents = new TreeSet<Event>(Event.ABSOLUT_ORDERER);
-        simultaneousEvents.add(nextEvent);
+        batch.addEvent(nextEvent);
         while(!events.isEmpty()) {
             if(nextEvent.isSimultaneous(events.get(0)))
-                simultaneousEvents.add(events.remove(0));
+                batch.addEvent(events.remove(0));
             else
                 break;
         }
-        return simultaneousEvents;
+        return batch.size();
     }
 
     @Override
@@ -28,6 +28,14 @@ import org.anann.core.events.Event;
 public interface EventsHolder {
     public void add(Event event);
     public boolean remove(Event event);
+    /**
+     * Changes the firing time of the event, moving it to its new position in the holder.
+     * If the event was not in the holder it is just added with its new firing time.
+     * @param event
+     * @param newFiringTime
+     * @return {@code true} if the event was already stored in the holder.
+     */
+    public boolean reschedule(Event event, long newFiringTime);
     public Event next();
     public SortedSet<Event> nextSimultaneous();
     public Event peek();
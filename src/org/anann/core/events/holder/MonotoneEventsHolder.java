@@ -0,0 +1,36 @@
+/*
+ * Copyright 2013 Luis Rodero-Merino.
+ * 
+ * This file is part of Annan.
+ * 
+ * Annan is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Annan is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Annan.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package org.anann.core.events.holder;
+
+/**
+ * Events holders that can work faster if they are told that events are never added
+ * 'before' the last event returned (in {@link org.anann.core.events.Event#ORDERER} terms),
+ * i.e. that the holder is used as a monotone priority queue.
+ * See {@link org.anann.core.Simulator#setMonotone(boolean)}.
+ */
+public interface MonotoneEventsHolder extends EventsHolder {
+    /**
+     * @param monotone If {@code true}, the holder can assume that events added are never
+     * to be fired before the last event returned by {@link #next()} or {@link #nextSimultaneous()},
+     * so it does not need to check it.
+     */
+    public void setMonotone(boolean monotone);
+}
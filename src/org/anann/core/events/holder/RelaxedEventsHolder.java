@@ -0,0 +1,41 @@
+/*
+ * Copyright 2013 Luis Rodero-Merino.
+ * 
+ * This file is part of Annan.
+ * 
+ * Annan is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Annan is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Annan.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package org.anann.core.events.holder;
+
+import org.anann.core.Simulator;
+import org.anann.core.events.Event;
+
+/**
+ * Thread safe events holders that can give events out of order, which is faster when several threads
+ * take events at the same time. Used by the relaxed mode of {@link Simulator} (see
+ * {@link Simulator#setRelaxed(int, long)}). All other methods must keep the usual ordering.
+ */
+public interface RelaxedEventsHolder extends EventsHolder {
+    /**
+     * @return One of the first events, not necessarily the first one, or {@code null} if no events are left.
+     */
+    public Event nextRelaxed();
+    /**
+     * @return A lower bound of the firing time of the events stored (or {@link Long#MAX_VALUE} if there are none).
+     * As other threads can be adding events, it can be outdated as soon as it is returned.
+     */
+    public long lowerBound();
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright 2013 Luis Rodero-Merino.
+ * 
+ * This file is part of Annan.
+ * 
+ * Annan is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Annan is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Annan.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package org.anann.core.events.holder;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.SortedSet;
+
+import org.anann.core.events.Event;
+
+/**
+ * Read-only set of simultaneous events (i.e. all of them have the same firing
+ * time and priority), to be returned by {@link EventsHolder#nextSimultaneous()}
+ * implementations that already get those events in order, so there is no need
+ * to build a {@link java.util.TreeSet} for them.
+ * As all events are simultaneous, they are all equivalent for {@link Event#ORDERER}. So the set is
+ * sorted by the order the events were added by the events holder, which is what its
+ * {@link #comparator()} compares (it can only compare events in the set). Views over ranges of the
+ * set are given by the positions of their ends, so they see the events added later to those positions.
+ * <p>
+ * Instances can also be reused as batches filled by {@link BatchEventsHolder#nextSimultaneous(SimultaneousEvents)},
+ * then events should be read by {@link #get(int)}, which unlike iterators does not create any object.
+ */
+public class SimultaneousEvents extends AbstractSet<Event> implements SortedSet<Event> {
+    
+    private Event[] events = null;
+    private int size = 0;
+    
+    // Order the events were added in
+    private final Comparator<Event> addingOrder = new Comparator<Event>() {
+        @Override
+        public int compare(Event e1, Event e2) {
+            return Integer.compare(position(e1, 0, size), position(e2, 0, size));
+        }
+    };
+    
+    public SimultaneousEvents() {
+        events = new Event[16];
+    }
+    
+    /**
+     * Events added are assumed to be simultaneous with the ones already in the set, and not to be in it yet.
+     * @param event
+     */
+    public void addEvent(Event event) {
+        if(size == events.length)
+            events = Arrays.copyOf(events, size * 2);
+        events[size++] = event;
+    }
+    
+    public Event get(int index) {
+        if(index >= size)
+            throw new IndexOutOfBoundsException("Index " + index + " out of " + size + " simultaneous events");
+        return events[index];
+    }
+    
+    /**
+     * Removes all events, keeping the capacity reached so far.
+     */
+    @Override
+    public void clear() {
+        Arrays.fill(events, 0, size, null);
+        size = 0;
+    }
+
+    @Override
+    public Iterator<Event> iterator() {
+        return iterator(0, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean contains(Object object) {
+        return indexOf(object, 0, size) >= 0;
+    }
+
+    @Override
+    public Comparator<? super Event> comparator() {
+        return addingOrder;
+    }
+
+    @Override
+    public Event first() {
+        if(size == 0)
+            throw new NoSuchElementException();
+        return events[0];
+    }
+
+    @Override
+    public Event last() {
+        if(size == 0)
+            throw new NoSuchElementException();
+        return events[size - 1];
+    }
+
+    @Override
+    public SortedSet<Event> subSet(Event fromElement, Event toElement) {
+        return new Range(0, Integer.MAX_VALUE).subSet(fromElement, toElement);
+    }
+
+    @Override
+    public SortedSet<Event> headSet(Event toElement) {
+        return new Range(0, Integer.MAX_VALUE).headSet(toElement);
+    }
+
+    @Override
+    public SortedSet<Event> tailSet(Event fromElement) {
+        return new Range(0, Integer.MAX_VALUE).tailSet(fromElement);
+    }
+    
+    private int indexOf(Object event, int from, int to) {
+        for(int index = from; index < to; index++)
+            if(events[index] == event)
+                return index;
+        return -1;
+    }
+    
+    // Position of an event that must be in the given range
+    private int position(Event event, int from, int to) {
+        int index = indexOf(event, from, to);
+        if(index < 0)
+            throw new IllegalArgumentException("Event is not in this range of simultaneous events, so it cannot be compared");
+        return index;
+    }
+    
+    private Iterator<Event> iterator(final int from, final int to) {
+        return new Iterator<Event>() {
+            private int next = from;
+            @Override
+            public boolean hasNext() {
+                return next < Math.min(to, size);
+            }
+            @Override
+            public Event next() {
+                if(!hasNext())
+                    throw new NoSuchElementException();
+                return events[next++];
+            }
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+    
+    /**
+     * Events from position {@code from} (inclusive) to {@code to} (exclusive) of the set.
+     */
+    private class Range extends AbstractSet<Event> implements SortedSet<Event> {
+        
+        private final int from;
+        private final int to;
+        
+        Range(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+        
+        private int end() {
+            return Math.min(to, size);
+        }
+        
+        // Ends of subranges must be in this range, or be its end
+        private int bound(Event event) {
+            if(event == null)
+                throw new NullPointerException();
+            return position(event, from, end());
+        }
+
+        @Override
+        public Iterator<Event> iterator() {
+            return SimultaneousEvents.this.iterator(from, to);
+        }
+
+        @Override
+        public int size() {
+            return Math.max(end() - from, 0);
+        }
+
+        @Override
+        public boolean contains(Object object) {
+            return indexOf(object, from, end()) >= 0;
+        }
+
+        @Override
+        public Comparator<? super Event> comparator() {
+            return addingOrder;
+        }
+
+        @Override
+        public Event first() {
+            if(size() == 0)
+                throw new NoSuchElementException();
+            return events[from];
+        }
+
+        @Override
+        public Event last() {
+            if(size() == 0)
+                throw new NoSuchElementException();
+            return events[end() - 1];
+        }
+
+        @Override
+        public SortedSet<Event> subSet(Event fromElement, Event toElement) {
+            int subFrom = bound(fromElement);
+            int subTo = bound(toElement);
+            if(subFrom > subTo)
+                throw new IllegalArgumentException("Start of the range goes after its end");
+            return new Range(subFrom, subTo);
+        }
+
+        @Override
+        public SortedSet<Event> headSet(Event toElement) {
+            return new Range(from, bound(toElement));
+        }
+
+        @Override
+        public SortedSet<Event> tailSet(Event fromElement) {
+            return new Range(bound(fromElement), to);
+        }
+        
+    }
+
+}
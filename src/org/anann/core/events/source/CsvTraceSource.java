@@ -0,0 +1,103 @@
+/*
+ * Copyright 2013 Luis Rodero-Merino.
+ * 
+ * This file is part of Annan.
+ * 
+ * Annan is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Annan is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Annan.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+
+package org.anann.core.events.source;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+
+import org.anann.core.Simulator;
+import org.anann.core.events.Event;
+import org.anann.core.events.EventHandler;
+
+/**
+ * Reads events from a text trace, one per line, as comma separated values: firing time, code,
+ * handler (index in the array of handlers given) and, optionally, priority (0 if missing).
+ * Empty lines and lines starting with {@code #} are skipped. The trace is read as events are
+ * needed, so it is never loaded whole into memory.
+ */
+public class CsvTraceSource implements EventSource {
+    
+    public static final int DEFAULT_PRIORITY = 0;
+    
+    private final EventHandler[] handlers;
+    private final BufferedReader reader;
+    private long lineNumber = 0;
+    
+    public CsvTraceSource(Reader trace, EventHandler[] handlers) {
+        if(trace == null)
+            throw new IllegalArgumentException("Cannot read a null trace");
+        if((handlers == null) || (handlers.length == 0))
+            throw new IllegalArgumentException("Cannot read a trace without event handlers");
+        this.handlers = handlers;
+        reader = (trace instanceof BufferedReader) ? (BufferedReader)trace : new BufferedReader(trace);
+    }
+
+    @Override
+    public Event next(Simulator simulator) {
+        String line = nextLine();
+        if(line == null)
+            return null;
+        try {
+            int firstComma = line.indexOf(',');
+            int secondComma = line.indexOf(',', firstComma + 1);
+            if((firstComma < 0) || (secondComma < 0))
+                throw new IllegalArgumentException("Expected at least three values");
+            int thirdComma = line.indexOf(',', secondComma + 1);
+            long firingTime = Long.parseLong(line.substring(0, firstComma).trim());
+            int code = Integer.parseInt(line.substring(firstComma + 1, secondComma).trim());
+            int handler = Integer.parseInt(line.substring(secondComma + 1, (thirdComma < 0) ? line.length() : thirdComma).trim());
+            int priority = (thirdComma < 0) ? DEFAULT_PRIORITY : Integer.parseInt(line.substring(thirdComma + 1).trim());
+            if((handler < 0) || (handler >= handlers.length))
+                throw new IllegalArgumentException("Handler " + handler + " does not exist, there are " + handlers.length + " handlers");
+            return simulator.newEvent(firingTime, code, handlers[handler], priority);
+        } catch (IllegalArgumentException exception) {
+            throw new IllegalArgumentException("Wrong record at line " + lineNumber + " of trace: '" + line + "'", exception);
+        }
+    }
+    
+    private String nextLine() {
+        try {
+            while(true) {
+                String line = reader.readLine();
+                if(line == null)
+                    return null;
+                lineNumber++;
+                line = line.trim();
+                if(!line.isEmpty() && (line.charAt(0) != '#'))
+                    return line;
+            }
+        } catch (IOException exception) {
+            throw new Error("Could not read line " + (lineNumber + 1) + " of trace", exception);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            reader.close();
+        } catch (IOException exception) {
+            throw new Error("Could not close trace", exception);
+        }
+    }
+
+}
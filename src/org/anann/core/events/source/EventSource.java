@@ -0,0 +1,48 @@
+/*
+ * Copyright 2013 Luis Rodero-Merino.
+ * 
+ * This file is part of Annan.
+ * 
+ * Annan is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Annan is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Annan.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+
+package org.anann.core.events.source;
+
+import org.anann.core.Simulator;
+import org.anann.core.events.Event;
+
+/**
+ * Stream of events that the simulator reads lazily (see {@link Simulator#addSource(EventSource)}):
+ * the next event of the source is read only when the previous one is fired, so there is never more
+ * than one event of each source in the events holder, regardless of the length of the stream.
+ * Useful to replay traces or generate arrivals without scheduling them all in advance.
+ */
+public interface EventSource {
+    /**
+     * @param simulator Simulator the event is for, events should be created with
+     * {@link Simulator#newEvent(long, int, org.anann.core.events.EventHandler, int)} so they are pooled.
+     * @return The next event, or {@code null} if the source is exhausted. Events must be returned in
+     * non-decreasing firing time. Events with the same firing time are run in the order they are
+     * returned, to run them by priority they must be returned sorted by {@link Event#ORDERER}.
+     */
+    public Event next(Simulator simulator);
+    /**
+     * Releases the resources used by the source, called by the simulator once the source is exhausted
+     * or, if it is not, when the simulator is reset or its sources are closed (see
+     * {@link Simulator#closeSources()}). Called only once.
+     */
+    public void close();
+}
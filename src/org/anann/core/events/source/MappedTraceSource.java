@@ -0,0 +1,118 @@
+/*
+ * Copyright 2013 Luis Rodero-Merino.
+ * 
+ * This file is part of Annan.
+ * 
+ * Annan is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Annan is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Annan.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+
+package org.anann.core.events.source;
+
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.anann.core.Simulator;
+import org.anann.core.events.Event;
+import org.anann.core.events.EventHandler;
+
+/**
+ * Reads events from a binary trace file, which is memory mapped so records are read straight
+ * from the operating system page cache. Each record takes {@link #RECORD_SIZE} bytes: firing time
+ * (long), code (int), handler (int, index in the array of handlers given) and priority (int), all
+ * big-endian, as written by {@link #writeRecord(DataOutput, long, int, int, int)} or
+ * {@link java.io.DataOutputStream}. Files bigger than 2GB are mapped in several parts.
+ */
+public class MappedTraceSource implements EventSource {
+    
+    public static final int RECORD_SIZE = 20;
+    // Biggest part that can be mapped at once, with a whole number of records
+    private static final long PART_SIZE = (Integer.MAX_VALUE / RECORD_SIZE) * (long)RECORD_SIZE;
+    
+    private final EventHandler[] handlers;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final long length;
+    private MappedByteBuffer part = null;
+    private long partStart = 0;
+    private long records = 0;
+    
+    public MappedTraceSource(File trace, EventHandler[] handlers) throws IOException {
+        if(trace == null)
+            throw new IllegalArgumentException("Cannot read a null trace file");
+        if((handlers == null) || (handlers.length == 0))
+            throw new IllegalArgumentException("Cannot read a trace without event handlers");
+        this.handlers = handlers;
+        file = new RandomAccessFile(trace, "r");
+        channel = file.getChannel();
+        length = channel.size();
+        if(length % RECORD_SIZE != 0) {
+            close();
+            throw new IllegalArgumentException("Trace file " + trace + " is " + length + " bytes long, that is not a multiple of the record size " + RECORD_SIZE);
+        }
+    }
+    
+    public static void writeRecord(DataOutput output, long firingTime, int code, int handler, int priority) throws IOException {
+        output.writeLong(firingTime);
+        output.writeInt(code);
+        output.writeInt(handler);
+        output.writeInt(priority);
+    }
+    
+    /**
+     * @return Number of records read so far.
+     */
+    public long getRecords() {
+        return records;
+    }
+
+    @Override
+    public Event next(Simulator simulator) {
+        if((part == null) || !part.hasRemaining()) {
+            long start = (part == null) ? 0 : partStart + part.capacity();
+            if(start >= length)
+                return null;
+            try {
+                part = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(PART_SIZE, length - start));
+            } catch (IOException exception) {
+                throw new Error("Could not map part of trace file starting at byte " + start, exception);
+            }
+            partStart = start;
+        }
+        long firingTime = part.getLong();
+        int code = part.getInt();
+        int handler = part.getInt();
+        int priority = part.getInt();
+        if((handler < 0) || (handler >= handlers.length))
+            throw new IllegalStateException("Record " + records + " of trace is for handler " + handler + ", but there are " + handlers.length + " handlers");
+        records++;
+        return simulator.newEvent(firingTime, code, handlers[handler], priority);
+    }
+
+    @Override
+    public void close() {
+        part = null;
+        try {
+            file.close();
+        } catch (IOException exception) {
+            throw new Error("Could not close trace file", exception);
+        }
+    }
+
+}
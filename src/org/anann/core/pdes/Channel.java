@@ -0,0 +1,80 @@
+/*
+ * Copyright 2013 Luis Rodero-Merino.
+ * 
+ * This file is part of Annan.
+ * 
+ * Annan is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Annan is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Annan.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package org.anann.core.pdes;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.anann.core.events.Event;
+
+/**
+ * One way link between two logical processes of a {@link ConservativeSimulation}. Events are sent
+ * through a lock-free queue. Besides, the channel keeps a clock, which is a promise made by the sender
+ * that no event with an earlier firing time will ever be sent through the channel. Advancing the clock
+ * plays the role of the null messages of the Chandy-Misra-Bryant algorithm, without creating any object.
+ * <p>
+ * Events must be queued before the clock is advanced past them, the receiver reads the clock before
+ * taking the events from the queue, so all events sent before the clock it read are in the queue.
+ */
+class Channel {
+    
+    final LogicalProcess from;
+    final LogicalProcess to;
+    final long lookahead;
+    
+    private final ConcurrentLinkedQueue<Event> events = new ConcurrentLinkedQueue<Event>();
+    private volatile long clock = 0;
+    
+    // Only updated by the sender
+    long eventsSent = 0;
+    long nullMessages = 0;
+    
+    Channel(LogicalProcess from, LogicalProcess to, long lookahead) {
+        this.from = from;
+        this.to = to;
+        this.lookahead = lookahead;
+    }
+    
+    void send(Event event) {
+        events.add(event);
+        eventsSent++;
+    }
+    
+    /**
+     * Promises that no event with a firing time before the given one will be sent, waking up
+     * the receiver if it was waiting.
+     */
+    void advance(long time) {
+        if(time <= clock)
+            return;
+        clock = time;
+        nullMessages++;
+        to.wakeUp();
+    }
+    
+    long clock() {
+        return clock;
+    }
+    
+    Event receive() {
+        return events.poll();
+    }
+    
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright 2013 Luis Rodero-Merino.
+ * 
+ * This file is part of Annan.
+ * 
+ * Annan is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Annan is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Annan.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package org.anann.core.pdes;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.LockSupport;
+
+import org.anann.core.Entity;
+import org.anann.core.Simulator;
+import org.anann.core.events.EventHandler;
+import org.anann.core.events.holder.EventsHolder;
+
+/**
+ * Conservative parallel discrete event simulation, following the Chandy-Misra-Bryant algorithm.
+ * The model is split in {@link LogicalProcess}es, each one with its own events holder and run by its own
+ * thread, so unlike parallel dispatchers (see {@link org.anann.core.events.dispatcher.EventsDispatcher})
+ * events of different processes are run in parallel even if they are not simultaneous.
+ * <p>
+ * Processes exchange events through the channels created by {@link #connect(LogicalProcess, LogicalProcess, long)},
+ * each with a lookahead: the minimum delay between the time an event is sent and its firing time.
+ * Each process only fires events that no other process can precede anymore, and tells the processes it is
+ * connected to how far they can go (null messages), so the simulation cannot deadlock as long as all lookaheads
+ * are positive. The bigger the lookaheads, the more events can be run in parallel.
+ * <p>
+ * Events are sent to the process their handler belongs to. {@link Entity} instances belong to the process
+ * they were created with as simulator, other handlers must be assigned explicitly with
+ * {@link #assign(EventHandler, LogicalProcess)}, or they will be run by the process that scheduled the event.
+ * Usage:
+ * <pre>
+ * ConservativeSimulation simulation = new ConservativeSimulation();
+ * LogicalProcess lp0 = simulation.newLogicalProcess(new EHBasedOnIndexedHeap());
+ * LogicalProcess lp1 = simulation.newLogicalProcess(new EHBasedOnIndexedHeap());
+ * simulation.connect(lp0, lp1, 10);
+ * simulation.connect(lp1, lp0, 10);
+ * // Create entities with lp0 or lp1 as simulator, schedule initial events...
+ * simulation.run(100000);
+ * </pre>
+ */
+public class ConservativeSimulation {
+    
+    private final List<LogicalProcess> logicalProcesses = new ArrayList<LogicalProcess>();
+    private final Map<EventHandler, LogicalProcess> owners = new IdentityHashMap<EventHandler, LogicalProcess>();
+    private volatile boolean running = false;
+    private volatile Throwable failure = null;
+    
+    public synchronized LogicalProcess newLogicalProcess(EventsHolder eventsHolder) {
+        checkNotRunning();
+        LogicalProcess logicalProcess = new LogicalProcess(this, logicalProcesses.size(), eventsHolder);
+        logicalProcesses.add(logicalProcess);
+        return logicalProcess;
+    }
+    
+    public List<LogicalProcess> getLogicalProcesses() {
+        return Collections.unmodifiableList(logicalProcesses);
+    }
+    
+    /**
+     * Creates a channel, so {@code from} can send events to {@code to}.
+     * @param from
+     * @param to
+     * @param lookahead Minimum delay of events sent, must be positive.
+     */
+    public synchronized void connect(LogicalProcess from, LogicalProcess to, long lookahead) {
+        checkNotRunning();
+        checkOwned(from);
+        checkOwned(to);
+        if(from == to)
+            throw new IllegalArgumentException("Cannot connect a logical process with itself");
+        if(lookahead <= 0)
+            throw new IllegalArgumentException("Lookahead must be positive, cannot be " + lookahead);
+        for(Channel channel: from.outputs)
+            if(channel.to == to)
+                throw new IllegalArgumentException("Logical processes " + from.getIndex() + " and " + to.getIndex() + " are already connected");
+        Channel channel = new Channel(from, to, lookahead);
+        from.outputs.add(channel);
+        to.inputs.add(channel);
+    }
+    
+    /**
+     * Connects all logical processes with each other, with the same lookahead.
+     * @param lookahead
+     */
+    public synchronized void connectAll(long lookahead) {
+        for(LogicalProcess from: logicalProcesses)
+            for(LogicalProcess to: logicalProcesses)
+                if(from != to)
+                    connect(from, to, lookahead);
+    }
+    
+    /**
+     * Events for the handler will be fired by the given logical process. Not needed for {@link Entity}
+     * instances created with a logical process as simulator.
+     * @param eventHandler
+     * @param logicalProcess
+     */
+    public synchronized void assign(EventHandler eventHandler, LogicalProcess logicalProcess) {
+        checkNotRunning();
+        checkOwned(logicalProcess);
+        owners.put(eventHandler, logicalProcess);
+    }
+    
+    LogicalProcess owner(EventHandler eventHandler) {
+        // Not synchronized, handlers cannot be assigned while running
+        LogicalProcess owner = owners.get(eventHandler);
+        if(owner != null)
+            return owner;
+        if(eventHandler instanceof Entity) {
+            Simulator simulator = ((Entity)eventHandler).getSimulator();
+            if((simulator instanceof LogicalProcess) && (((LogicalProcess)simulator).getSimulation() == this))
+                return (LogicalProcess)simulator;
+        }
+        return null;
+    }
+    
+    public boolean isRunning() {
+        return running;
+    }
+    
+    /**
+     * Runs all logical processes, each one in its own thread, until all of them have fired
+     * all their events up to the given time. If any process fails, all of them are stopped, and
+     * the failure is thrown once they finish.
+     * @param endTime Must be positive.
+     */
+    public void run(final long endTime) {
+        if(endTime <= 0)
+            throw new IllegalArgumentException("End time must be positive, cannot be " + endTime);
+        synchronized(this) {
+            checkNotRunning();
+            if(logicalProcesses.isEmpty())
+                throw new IllegalStateException("There are no logical processes to run");
+            running = true;
+        }
+        try {
+            // All threads created before any of them starts, so they can wake up each other
+            for(final LogicalProcess logicalProcess: logicalProcesses) {
+                logicalProcess.thread = new Thread("LP-" + logicalProcess.getIndex()) {
+                    @Override
+                    public void run() {
+                        try {
+                            logicalProcess.start(endTime);
+                        } catch (Throwable throwable) {
+                            fail(throwable);
+                        }
+                    }
+                };
+            }
+            for(LogicalProcess logicalProcess: logicalProcesses)
+                logicalProcess.thread.start();
+            for(LogicalProcess logicalProcess: logicalProcesses) {
+                try {
+                    logicalProcess.thread.join();
+                } catch (InterruptedException exception) {
+                    Thread.currentThread().interrupt();
+                    fail(exception);
+                }
+            }
+        } finally {
+            running = false;
+        }
+        Throwable throwable = failure;
+        if(throwable != null) {
+            failure = null;
+            if(throwable instanceof RuntimeException)
+                throw (RuntimeException)throwable;
+            if(throwable instanceof Error)
+                throw (Error)throwable;
+            throw new IllegalStateException("Parallel simulation failed", throwable);
+        }
+    }
+    
+    private void fail(Throwable throwable) {
+        if(failure == null)
+            failure = throwable;
+        for(LogicalProcess logicalProcess: logicalProcesses) {
+            logicalProcess.stop();
+            LockSupport.unpark(logicalProcess.thread);
+        }
+    }
+    
+    private void checkNotRunning() {
+        if(running)
+            throw new IllegalStateException("Cannot change a parallel simulation while it is running");
+    }
+    
+    private void checkOwned(LogicalProcess logicalProcess) {
+        if((logicalProcess == null) || (logicalProcess.getSimulation() != this))
+            throw new IllegalArgumentException("Logical process does not belong to this simulation");
+    }
+    
+}
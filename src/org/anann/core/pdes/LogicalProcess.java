@@ -0,0 +1,179 @@
+/*
+ * Copyright 2013 Luis Rodero-Merino.
+ * 
+ * This file is part of Annan.
+ * 
+ * Annan is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Annan is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Annan.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package org.anann.core.pdes;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+import org.anann.core.Simulator;
+import org.anann.core.events.Event;
+import org.anann.core.events.dispatcher.SerialEventDispatcher;
+import org.anann.core.events.holder.EventsHolder;
+
+/**
+ * Part of a {@link ConservativeSimulation}, run by its own thread. A logical process is a serial
+ * {@link Simulator} with its own events holder, so entities are assigned to a logical process just by
+ * creating them with it as their simulator. Events scheduled for handlers of other logical processes are
+ * sent to them through the corresponding {@link Channel}, and must be scheduled at least the channel
+ * lookahead after the present time. Events sent to other logical processes cannot be cancelled nor
+ * rescheduled.
+ * <p>
+ * A logical process only fires events that are safe, i.e. that are before the clocks of all its input
+ * channels. After that, it advances the clocks of its output channels to the earliest time it could still
+ * fire an event plus the channel lookahead, and waits if it could not fire anything.
+ */
+public class LogicalProcess extends Simulator {
+    
+    private final ConservativeSimulation simulation;
+    private final int index;
+    final List<Channel> inputs = new ArrayList<Channel>();
+    final List<Channel> outputs = new ArrayList<Channel>();
+    volatile Thread thread = null;
+    private volatile boolean waiting = false;
+    
+    // Statistics
+    private long eventsFired = 0;
+    private long waits = 0;
+    
+    LogicalProcess(ConservativeSimulation simulation, int index, EventsHolder eventsHolder) {
+        super(eventsHolder, new SerialEventDispatcher());
+        this.simulation = simulation;
+        this.index = index;
+    }
+    
+    public ConservativeSimulation getSimulation() {
+        return simulation;
+    }
+    
+    public int getIndex() {
+        return index;
+    }
+    
+    /**
+     * If the event handler belongs to another logical process, the event is sent to it.
+     */
+    @Override
+    public void schedule(Event event) {
+        if(event == null)
+            throw new IllegalArgumentException("Cannot program null events in simulation");
+        LogicalProcess target = simulation.owner(event.getEventHandler());
+        if((target == null) || (target == this)) {
+            super.schedule(event);
+            return;
+        }
+        // Before the simulation starts, events are just added to their logical process
+        if(!simulation.isRunning()) {
+            target.schedule(event);
+            return;
+        }
+        Channel channel = channelTo(target);
+        if(event.getFiringTime() < time() + channel.lookahead)
+            throw new IllegalArgumentException("Event for logical process " + target.index + " scheduled at " + event.getFiringTime() +
+                                               ", but the lookahead from logical process " + index + " at time " + time() +
+                                               " only allows events from " + (time() + channel.lookahead));
+        channel.send(event);
+    }
+    
+    private Channel channelTo(LogicalProcess target) {
+        for(Channel channel: outputs)
+            if(channel.to == target)
+                return channel;
+        throw new IllegalStateException("There is no channel from logical process " + index + " to logical process " + target.index);
+    }
+    
+    @Override
+    protected void run() {
+        long endTime = (maxSimDuration > 0) ? maxSimDuration + 1 : Long.MAX_VALUE;
+        while(!isStopped()) {
+            long safeTime = receive();
+            eventsFired += runSerialBefore(Math.min(safeTime, endTime));
+            if(isStopped())
+                return;
+            // Earliest time of any event this process can still fire, or send
+            long earliest = Math.min(nextEventTime(), safeTime);
+            for(Channel channel: outputs)
+                channel.advance(plus(earliest, channel.lookahead));
+            if(earliest >= endTime)
+                return;
+            // All safe events fired, nothing to do until some input clock moves
+            waiting = true;
+            if(receive() == safeTime) {
+                waits++;
+                LockSupport.park(this);
+            }
+            waiting = false;
+        }
+    }
+    
+    /**
+     * Takes the events sent to this process.
+     * @return The minimum clock of the input channels.
+     */
+    private long receive() {
+        long safeTime = Long.MAX_VALUE;
+        for(Channel channel: inputs) {
+            // Clock read first, so all events sent before it are taken
+            safeTime = Math.min(safeTime, channel.clock());
+            for(Event event = channel.receive(); event != null; event = channel.receive())
+                super.schedule(event);
+        }
+        return safeTime;
+    }
+    
+    void wakeUp() {
+        if(waiting)
+            LockSupport.unpark(thread);
+    }
+    
+    private static long plus(long time, long delay) {
+        return (time > Long.MAX_VALUE - delay) ? Long.MAX_VALUE : time + delay;
+    }
+    
+    public long getEventsFired() {
+        return eventsFired;
+    }
+    
+    /**
+     * @return Times this process had to wait for its input channels.
+     */
+    public long getWaits() {
+        return waits;
+    }
+    
+    public long getEventsSent() {
+        long eventsSent = 0;
+        for(Channel channel: outputs)
+            eventsSent += channel.eventsSent;
+        return eventsSent;
+    }
+    
+    /**
+     * @return Times this process advanced the clock of some output channel.
+     */
+    public long getNullMessages() {
+        long nullMessages = 0;
+        for(Channel channel: outputs)
+            nullMessages += channel.nullMessages;
+        return nullMessages;
+    }
+    
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright 2013 Luis Rodero-Merino.
+ * 
+ * This file is part of Annan.
+ * 
+ * Annan is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Annan is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Annan.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package org.anann.core.pdes;
+
+/**
+ * Event handlers whose state can be saved and restored, needed by {@link TimeWarpSimulation} to
+ * undo events fired too early. Saved states are never modified by the simulator, so they can be
+ * shared by successive snapshots as long as the handler does not change them either (e.g. immutable objects).
+ */
+public interface Snapshotable {
+    /**
+     * @return The present state of the handler, {@code null} is a valid state (e.g. for handlers with no state).
+     */
+    public Object saveState();
+    /**
+     * Sets the handler back to a state previously returned by {@link #saveState()}. The same state can be
+     * restored several times.
+     * @param state
+     */
+    public void restoreState(Object state);
+}
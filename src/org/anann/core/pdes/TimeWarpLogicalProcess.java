@@ -0,0 +1,405 @@
+/*
+ * Copyright 2013 Luis Rodero-Merino.
+ * 
+ * This file is part of Annan.
+ * 
+ * Annan is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Annan is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Annan.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package org.anann.core.pdes;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+import org.anann.core.Entity;
+import org.anann.core.Simulator;
+import org.anann.core.events.Event;
+import org.anann.core.events.EventHandler;
+import org.anann.core.events.dispatcher.SerialEventDispatcher;
+import org.anann.core.events.holder.EventsHolder;
+
+/**
+ * Part of a {@link TimeWarpSimulation}, run by its own thread. A logical process is a serial {@link Simulator}
+ * that fires its events as soon as it can, without waiting for other processes. When it gets an event
+ * in its past (a straggler), or an anti-message cancelling an event it already fired, it rolls back: it
+ * undoes, from the last one, the events fired after it. Undoing an event restores the state its handler
+ * had before the event was fired, undoes the changes the event made to the events holder, and sends
+ * anti-messages for the events it sent to other processes.
+ * <p>
+ * State saving is incremental: before firing an event, only the state of its handler is saved, so events
+ * must only change the state of their own handler.
+ * <p>
+ * To be able to do so, the process keeps every event it fires, so events are never taken from pools here
+ * ({@link #newEvent(long, int, EventHandler, int)} always creates a new one). Events sent to other
+ * logical processes cannot be cancelled nor rescheduled.
+ */
+public class TimeWarpLogicalProcess extends Simulator {
+    
+    private static final int ADD = 0;
+    private static final int REMOVE = 1;
+    private static final int RESCHEDULE = 2;
+    private static final int SEND = 3;
+    
+    private final TimeWarpSimulation simulation;
+    private final int index;
+    private final EventsHolder eventsHolder;
+    private final ConcurrentLinkedQueue<Message> inbox = new ConcurrentLinkedQueue<Message>();
+    volatile Thread thread = null;
+    private volatile boolean waiting = false;
+    private boolean idle = false;
+    
+    // Events fired and not committed yet (i.e. not before GVT), in the order they were fired
+    private final ArrayList<Processed> processed = new ArrayList<Processed>();
+    // Event being fired, its changes to the events holder are logged
+    private Processed current = null;
+    private int eventsSinceGvt = 0;
+    
+    // Statistics
+    private long eventsFired = 0;
+    private long eventsRolledBack = 0;
+    private long rollbacks = 0;
+    private long eventsSent = 0;
+    private long antiMessagesSent = 0;
+    private long statesSaved = 0;
+    
+    TimeWarpLogicalProcess(TimeWarpSimulation simulation, int index, EventsHolder eventsHolder) {
+        super(eventsHolder, new SerialEventDispatcher());
+        this.simulation = simulation;
+        this.index = index;
+        this.eventsHolder = eventsHolder;
+    }
+    
+    public TimeWarpSimulation getSimulation() {
+        return simulation;
+    }
+    
+    public int getIndex() {
+        return index;
+    }
+    
+    /**
+     * Events must be kept after being fired, so they are never taken from the events pool.
+     */
+    @Override
+    public Event newEvent(long firingTime, int code, EventHandler eventHandler, int priority) {
+        return new Event(firingTime, code, eventHandler, priority);
+    }
+    
+    /**
+     * If the event handler belongs to another logical process, the event is sent to it.
+     */
+    @Override
+    public void schedule(Event event) {
+        if(event == null)
+            throw new IllegalArgumentException("Cannot program null events in simulation");
+        TimeWarpLogicalProcess target = simulation.owner(event.getEventHandler());
+        if((target == null) || (target == this)) {
+            super.schedule(event);
+            log(ADD, event, 0, false, null);
+            return;
+        }
+        // Before the simulation starts, events are just added to their logical process
+        if(!simulation.isRunning()) {
+            target.schedule(event);
+            return;
+        }
+        if(event.getFiringTime() < time())
+            throw new IllegalArgumentException("Cannot program an event for the past! Event was to be fired at " +
+                                               event.getFiringTime() + " but simulation time is " + time());
+        target.post(new Message(event, false));
+        eventsSent++;
+        log(SEND, event, 0, false, target);
+    }
+    
+    @Override
+    public void reschedule(Event event, long newFiringTime) {
+        if(event == null)
+            throw new IllegalArgumentException("Cannot reschedule a null event");
+        if(newFiringTime < time())
+            throw new IllegalArgumentException("Cannot reschedule an event to the past! Event was to be fired at " +
+                                               newFiringTime + " but simulation time is " + time());
+        long oldFiringTime = event.getFiringTime();
+        boolean found = eventsHolder.reschedule(event, newFiringTime);
+        log(RESCHEDULE, event, oldFiringTime, found, null);
+    }
+    
+    @Override
+    public void cancel(Event event) {
+        if(event == null)
+            throw new IllegalArgumentException("Cannot cancel a null event");
+        if(eventsHolder.remove(event))
+            log(REMOVE, event, 0, false, null);
+    }
+    
+    private void log(int kind, Event event, long oldFiringTime, boolean found, TimeWarpLogicalProcess target) {
+        if(current != null)
+            current.operations.add(new Operation(kind, event, oldFiringTime, found, target));
+    }
+    
+    void post(Message message) {
+        inbox.add(message);
+        if(waiting)
+            LockSupport.unpark(thread);
+    }
+    
+    void wakeUp() {
+        if(waiting)
+            LockSupport.unpark(thread);
+    }
+    
+    @Override
+    protected void run() {
+        long endTime = maxSimDuration + 1;
+        while(!isStopped()) {
+            if(simulation.isGvtRequested()) {
+                if(!simulation.awaitGvt())
+                    return;
+                continue;
+            }
+            receive();
+            if(nextEventTime() < endTime) {
+                setIdle(false);
+                fireNext(endTime);
+                if(++eventsSinceGvt >= simulation.getGvtInterval()) {
+                    eventsSinceGvt = 0;
+                    simulation.requestGvt();
+                }
+                continue;
+            }
+            // Nothing to fire until some event arrives, or GVT shows the simulation is finished
+            setIdle(true);
+            waiting = true;
+            if(inbox.isEmpty() && !simulation.isGvtRequested() && !isStopped())
+                LockSupport.park(this);
+            waiting = false;
+        }
+    }
+    
+    private void setIdle(boolean idle) {
+        if(this.idle == idle)
+            return;
+        this.idle = idle;
+        simulation.idleChanged(idle);
+    }
+    
+    private void fireNext(long endTime) {
+        Processed entry = new Processed();
+        Event next = eventsHolder.peek();
+        // Handlers not assigned have no state to save
+        if(simulation.owner(next.getEventHandler()) == this) {
+            entry.handler = next.getEventHandler();
+            if(entry.handler instanceof Entity)
+                entry.entityState = ((Entity)entry.handler).saveEntityState();
+            entry.handlerState = ((Snapshotable)entry.handler).saveState();
+            statesSaved++;
+        }
+        entry.firingTime = next.getFiringTime();
+        entry.priority = next.getPriority();
+        current = entry;
+        try {
+            entry.event = fireNextBefore(endTime);
+        } finally {
+            current = null;
+        }
+        processed.add(entry);
+        eventsFired++;
+    }
+    
+    /**
+     * Takes the events and anti-messages sent to this process, rolling back if needed.
+     * @return Whether there was any.
+     */
+    boolean receive() {
+        boolean received = false;
+        for(Message message = inbox.poll(); message != null; message = inbox.poll()) {
+            received = true;
+            if(message.anti)
+                annihilate(message.event);
+            else
+                insert(message.event);
+        }
+        return received;
+    }
+    
+    private void insert(Event event) {
+        int last = processed.size() - 1;
+        if((last >= 0) && firesBefore(event, processed.get(last))) {
+            // Straggler, events fired after it are undone
+            int first = last;
+            while((first > 0) && firesBefore(event, processed.get(first - 1)))
+                first--;
+            rollback(first);
+        }
+        eventsHolder.add(event);
+    }
+    
+    private void annihilate(Event event) {
+        if(eventsHolder.remove(event))
+            return;
+        for(int position = processed.size() - 1; position >= 0; position--) {
+            if(processed.get(position).event == event) {
+                rollback(position);
+                eventsHolder.remove(event);
+                return;
+            }
+        }
+        throw new IllegalStateException("Logical process " + index + " got an anti-message for an event at " + event.getFiringTime() +
+                                        " that it does not have");
+    }
+    
+    /**
+     * Same order as {@link Event#ORDERER}, but with the time and priority the processed event was fired with.
+     */
+    private static boolean firesBefore(Event event, Processed entry) {
+        if(event.getFiringTime() != entry.firingTime)
+            return event.getFiringTime() < entry.firingTime;
+        return event.getPriority() > entry.priority;
+    }
+    
+    /**
+     * Undoes all events fired from the given position on.
+     */
+    private void rollback(int position) {
+        for(int i = processed.size() - 1; i >= position; i--)
+            undo(processed.remove(i));
+        rollbacks++;
+    }
+    
+    private void undo(Processed entry) {
+        for(int i = entry.operations.size() - 1; i >= 0; i--) {
+            Operation operation = entry.operations.get(i);
+            switch(operation.kind) {
+            case ADD:
+                eventsHolder.remove(operation.event);
+                break;
+            case REMOVE:
+                eventsHolder.add(operation.event);
+                break;
+            case RESCHEDULE:
+                if(operation.found) {
+                    eventsHolder.reschedule(operation.event, operation.oldFiringTime);
+                } else {
+                    eventsHolder.remove(operation.event);
+                    operation.event.setFiringTime(operation.oldFiringTime);
+                }
+                break;
+            case SEND:
+                operation.target.post(new Message(operation.event, true));
+                antiMessagesSent++;
+                break;
+            }
+        }
+        if(entry.handler != null) {
+            if(entry.handler instanceof Entity)
+                ((Entity)entry.handler).restoreEntityState(entry.entityState);
+            ((Snapshotable)entry.handler).restoreState(entry.handlerState);
+        }
+        entry.event.recycle(entry.firingTime, entry.event.getCode(), entry.event.getEventHandler(), entry.priority);
+        eventsHolder.add(entry.event);
+        eventsRolledBack++;
+    }
+    
+    /**
+     * Drops the events fired before the given GVT, they will never be rolled back.
+     */
+    void fossilCollect(long gvt) {
+        int first = 0;
+        while((first < processed.size()) && (processed.get(first).firingTime < gvt))
+            first++;
+        processed.subList(0, first).clear();
+    }
+    
+    // Overridden so the simulation can call it
+    @Override
+    protected long nextEventTime() {
+        return super.nextEventTime();
+    }
+    
+    public long getEventsFired() {
+        return eventsFired;
+    }
+    
+    public long getEventsRolledBack() {
+        return eventsRolledBack;
+    }
+    
+    /**
+     * @return Events fired and not rolled back.
+     */
+    public long getEventsCommitted() {
+        return eventsFired - eventsRolledBack;
+    }
+    
+    public long getRollbacks() {
+        return rollbacks;
+    }
+    
+    public long getEventsSent() {
+        return eventsSent;
+    }
+    
+    public long getAntiMessagesSent() {
+        return antiMessagesSent;
+    }
+    
+    /**
+     * @return Times the state of a handler was saved.
+     */
+    public long getStatesSaved() {
+        return statesSaved;
+    }
+    
+    static class Message {
+        final Event event;
+        final boolean anti;
+        
+        Message(Event event, boolean anti) {
+            this.event = event;
+            this.anti = anti;
+        }
+    }
+    
+    static class Processed {
+        Event event = null;
+        // Handlers can schedule again the event they are fired with (e.g. Entity), so the time and
+        // priority it was fired with are kept
+        long firingTime = 0;
+        int priority = 0;
+        // Handler of the event (if it has state), and its state before the event was fired
+        EventHandler handler = null;
+        Object entityState = null;
+        Object handlerState = null;
+        final List<Operation> operations = new ArrayList<Operation>(2);
+    }
+    
+    static class Operation {
+        final int kind;
+        final Event event;
+        final long oldFiringTime;
+        final boolean found;
+        final TimeWarpLogicalProcess target;
+        
+        Operation(int kind, Event event, long oldFiringTime, boolean found, TimeWarpLogicalProcess target) {
+            this.kind = kind;
+            this.event = event;
+            this.oldFiringTime = oldFiringTime;
+            this.found = found;
+            this.target = target;
+        }
+    }
+    
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright 2013 Luis Rodero-Merino.
+ * 
+ * This file is part of Annan.
+ * 
+ * Annan is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Annan is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Annan.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package org.anann.core.pdes;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+import org.anann.core.Entity;
+import org.anann.core.events.EventHandler;
+import org.anann.core.events.holder.EventsHolder;
+
+/**
+ * Optimistic parallel discrete event simulation, following the Time Warp algorithm. As in
+ * {@link ConservativeSimulation}, the model is split in logical processes ({@link TimeWarpLogicalProcess}),
+ * each run by its own thread. But here processes do not wait for each other, they fire events as soon as
+ * they have them, and roll back when some event arrives too late. So no lookahead is needed, at the price of
+ * undoing some work.
+ * <p>
+ * All event handlers (usually {@link Entity} subclasses created with their logical process as simulator)
+ * must be assigned to their process with {@link #assign(EventHandler, TimeWarpLogicalProcess)}, and must implement
+ * {@link Snapshotable}, as their state must be restored on rollbacks. The state of the {@link Entity} class itself
+ * is saved by the simulator. Handlers not assigned are run by the process that scheduled the event, and
+ * must have no state. State saving is incremental: before an event is fired, the state of its handler is saved
+ * (so events must not change the state of other handlers), and undoing the event restores it.
+ * <p>
+ * Every {@link #setGvtInterval(int)} events fired by any process (or when all processes are idle), all
+ * processes stop and GVT (global virtual time) is computed: the time of the earliest event not fired yet,
+ * once all events and anti-messages sent have been received. No process can roll back before GVT, so the
+ * events and snapshots older than GVT are dropped (fossil collection). The simulation ends when GVT goes
+ * beyond the end time.
+ * <p>
+ * Each logical process keeps statistics of events fired, rolled back, sent and anti-messages sent, to help
+ * tuning the GVT interval and the partition of the model.
+ */
+public class TimeWarpSimulation {
+    
+    public static final int DEFAULT_GVT_INTERVAL = 1000;
+    
+    private final List<TimeWarpLogicalProcess> logicalProcesses = new ArrayList<TimeWarpLogicalProcess>();
+    private final Map<EventHandler, TimeWarpLogicalProcess> owners = new IdentityHashMap<EventHandler, TimeWarpLogicalProcess>();
+    private int gvtInterval = DEFAULT_GVT_INTERVAL;
+    private volatile boolean running = false;
+    private volatile Throwable failure = null;
+    
+    // GVT computation, all processes wait in the barrier while it is computed
+    private CyclicBarrier barrier = null;
+    private volatile boolean gvtRequested = false;
+    private volatile boolean finished = false;
+    private final AtomicInteger idleProcesses = new AtomicInteger();
+    private long endTime = 0;
+    private long gvt = 0;
+    private long gvtComputations = 0;
+    
+    public synchronized TimeWarpLogicalProcess newLogicalProcess(EventsHolder eventsHolder) {
+        checkNotRunning();
+        TimeWarpLogicalProcess logicalProcess = new TimeWarpLogicalProcess(this, logicalProcesses.size(), eventsHolder);
+        logicalProcesses.add(logicalProcess);
+        return logicalProcess;
+    }
+    
+    public List<TimeWarpLogicalProcess> getLogicalProcesses() {
+        return Collections.unmodifiableList(logicalProcesses);
+    }
+    
+    /**
+     * Events for the handler will be fired by the given logical process.
+     * @param eventHandler Must implement {@link Snapshotable}. If it is an {@link Entity}, it must have
+     * been created with the logical process as simulator.
+     * @param logicalProcess
+     */
+    public synchronized void assign(EventHandler eventHandler, TimeWarpLogicalProcess logicalProcess) {
+        checkNotRunning();
+        if((logicalProcess == null) || (logicalProcess.getSimulation() != this))
+            throw new IllegalArgumentException("Logical process does not belong to this simulation");
+        if(!(eventHandler instanceof Snapshotable))
+            throw new IllegalArgumentException("Event handlers of a Time Warp simulation must implement " + Snapshotable.class.getName());
+        if((eventHandler instanceof Entity) && (((Entity)eventHandler).getSimulator() != logicalProcess))
+            throw new IllegalArgumentException("Entities must be assigned to the logical process they use as simulator");
+        if(owners.containsKey(eventHandler))
+            throw new IllegalArgumentException("Event handler is already assigned to logical process " + owners.get(eventHandler).getIndex());
+        owners.put(eventHandler, logicalProcess);
+    }
+    
+    TimeWarpLogicalProcess owner(EventHandler eventHandler) {
+        // Not synchronized, handlers cannot be assigned while running
+        return owners.get(eventHandler);
+    }
+    
+    public synchronized void setGvtInterval(int gvtInterval) {
+        checkNotRunning();
+        if(gvtInterval <= 0)
+            throw new IllegalArgumentException("GVT interval must be positive, cannot be " + gvtInterval);
+        this.gvtInterval = gvtInterval;
+    }
+    
+    public int getGvtInterval() {
+        return gvtInterval;
+    }
+    
+    public boolean isRunning() {
+        return running;
+    }
+    
+    /**
+     * @return Last GVT computed.
+     */
+    public long getGvt() {
+        return gvt;
+    }
+    
+    public long getGvtComputations() {
+        return gvtComputations;
+    }
+    
+    /**
+     * Runs all logical processes, each one in its own thread, until all events up to the given time
+     * have been fired and committed. If any process fails, all of them are stopped, and the failure
+     * is thrown once they finish.
+     * @param endTime Must be positive.
+     */
+    public void run(final long endTime) {
+        if((endTime <= 0) || (endTime == Long.MAX_VALUE))
+            throw new IllegalArgumentException("End time must be positive and finite, cannot be " + endTime);
+        synchronized(this) {
+            checkNotRunning();
+            if(logicalProcesses.isEmpty())
+                throw new IllegalStateException("There are no logical processes to run");
+            this.endTime = endTime;
+            barrier = new CyclicBarrier(logicalProcesses.size(), new Runnable() {
+                @Override
+                public void run() {
+                    computeGvt();
+                }
+            });
+            gvtRequested = false;
+            finished = false;
+            idleProcesses.set(0);
+            running = true;
+        }
+        try {
+            // All threads created before any of them starts, so they can wake up each other
+            for(final TimeWarpLogicalProcess logicalProcess: logicalProcesses) {
+                logicalProcess.thread = new Thread("LP-" + logicalProcess.getIndex()) {
+                    @Override
+                    public void run() {
+                        try {
+                            logicalProcess.start(endTime);
+                        } catch (Throwable throwable) {
+                            fail(throwable);
+                        }
+                    }
+                };
+            }
+            for(TimeWarpLogicalProcess logicalProcess: logicalProcesses)
+                logicalProcess.thread.start();
+            for(TimeWarpLogicalProcess logicalProcess: logicalProcesses) {
+                try {
+                    logicalProcess.thread.join();
+                } catch (InterruptedException exception) {
+                    Thread.currentThread().interrupt();
+                    fail(exception);
+                }
+            }
+        } finally {
+            running = false;
+        }
+        Throwable throwable = failure;
+        if(throwable != null) {
+            failure = null;
+            if(throwable instanceof RuntimeException)
+                throw (RuntimeException)throwable;
+            if(throwable instanceof Error)
+                throw (Error)throwable;
+            throw new IllegalStateException("Parallel simulation failed", throwable);
+        }
+    }
+    
+    boolean isGvtRequested() {
+        return gvtRequested;
+    }
+    
+    void requestGvt() {
+        if(gvtRequested)
+            return;
+        gvtRequested = true;
+        for(TimeWarpLogicalProcess logicalProcess: logicalProcesses)
+            logicalProcess.wakeUp();
+    }
+    
+    void idleChanged(boolean idle) {
+        if(!idle)
+            idleProcesses.decrementAndGet();
+        else if(idleProcesses.incrementAndGet() == logicalProcesses.size())
+            requestGvt();
+    }
+    
+    /**
+     * Waits until all processes stop, and GVT is computed.
+     * @return Whether the process must go on.
+     */
+    boolean awaitGvt() {
+        try {
+            barrier.await();
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+            fail(exception);
+            return false;
+        } catch (BrokenBarrierException exception) {
+            // Some other process failed
+            return false;
+        }
+        return !finished;
+    }
+    
+    // Run by the last process reaching the barrier, while the others wait
+    private void computeGvt() {
+        // Anti-messages can cause rollbacks, which send more anti-messages
+        boolean received = true;
+        while(received) {
+            received = false;
+            for(TimeWarpLogicalProcess logicalProcess: logicalProcesses)
+                received |= logicalProcess.receive();
+        }
+        long gvt = Long.MAX_VALUE;
+        for(TimeWarpLogicalProcess logicalProcess: logicalProcesses)
+            gvt = Math.min(gvt, logicalProcess.nextEventTime());
+        for(TimeWarpLogicalProcess logicalProcess: logicalProcesses)
+            logicalProcess.fossilCollect(gvt);
+        this.gvt = gvt;
+        gvtComputations++;
+        finished = (gvt > endTime);
+        gvtRequested = false;
+    }
+    
+    private void fail(Throwable throwable) {
+        if(failure == null)
+            failure = throwable;
+        for(TimeWarpLogicalProcess logicalProcess: logicalProcesses) {
+            logicalProcess.stop();
+            LockSupport.unpark(logicalProcess.thread);
+        }
+        barrier.reset();
+    }
+    
+    private void checkNotRunning() {
+        if(running)
+            throw new IllegalStateException("Cannot change a Time Warp simulation while it is running");
+    }
+    
+}
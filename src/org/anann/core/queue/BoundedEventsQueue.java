@@ -0,0 +1,102 @@
+/*
+ * Copyright 2013 Luis Rodero-Merino.
+ * 
+ * This file is part of Annan.
+ * 
+ * Annan is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Annan is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Annan.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+
+package org.anann.core.queue;
+
+import org.anann.core.events.Event;
+
+/**
+ * Limits the number of events waiting in another queue, which sets the discipline. Events that
+ * arrive when the queue is full are refused (see {@link org.anann.core.Entity#eventDropped(Event)})
+ * and counted.
+ */
+public class BoundedEventsQueue implements EventsQueue {
+    
+    private final EventsQueue queue;
+    private final int capacity;
+    private long dropped = 0;
+    
+    public BoundedEventsQueue(int capacity) {
+        this(new FifoEventsQueue(), capacity);
+    }
+    
+    public BoundedEventsQueue(EventsQueue queue, int capacity) {
+        if(queue == null)
+            throw new IllegalArgumentException("Cannot create a " + BoundedEventsQueue.class.getName() + " instance with null queue");
+        if(capacity <= 0)
+            throw new IllegalArgumentException("Capacity must be positive, cannot be " + capacity);
+        this.queue = queue;
+        this.capacity = capacity;
+    }
+    
+    public int getCapacity() {
+        return capacity;
+    }
+    
+    /**
+     * @return Number of events refused because the queue was full.
+     */
+    public long getDropped() {
+        return dropped;
+    }
+
+    @Override
+    public boolean offer(Event event) {
+        if(queue.size() >= capacity) {
+            dropped++;
+            return false;
+        }
+        return queue.offer(event);
+    }
+
+    @Override
+    public Event poll() {
+        return queue.poll();
+    }
+
+    @Override
+    public Event peek() {
+        return queue.peek();
+    }
+
+    @Override
+    public int size() {
+        return queue.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+    @Override
+    public void clear() {
+        queue.clear();
+    }
+
+    @Override
+    public BoundedEventsQueue copy() {
+        BoundedEventsQueue copy = new BoundedEventsQueue(queue.copy(), capacity);
+        copy.dropped = dropped;
+        return copy;
+    }
+
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2013 Luis Rodero-Merino.
+ * 
+ * This file is part of Annan.
+ * 
+ * Annan is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Annan is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Annan.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+
+package org.anann.core.queue;
+
+import org.anann.core.events.Event;
+
+/**
+ * Queue of the events waiting to be processed by an {@link org.anann.core.Entity} while it is busy.
+ * Implementations set the queueing discipline, i.e. which event is processed next.
+ */
+public interface EventsQueue {
+    /**
+     * @param event
+     * @return {@code false} if the event was not accepted (for example because the queue is full).
+     */
+    public boolean offer(Event event);
+    /**
+     * @return The next event to be processed, removing it from the queue, or {@code null} if the queue is empty.
+     */
+    public Event poll();
+    public Event peek();
+    public int size();
+    public boolean isEmpty();
+    public void clear();
+    /**
+     * @return A queue of the same class with the same events (and statistics, if any), used to save and
+     * restore the state of entities (see {@link org.anann.core.Entity#saveEntityState()}).
+     */
+    public EventsQueue copy();
+}
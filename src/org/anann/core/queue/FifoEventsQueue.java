@@ -0,0 +1,81 @@
+/*
+ * Copyright 2013 Luis Rodero-Merino.
+ * 
+ * This file is part of Annan.
+ * 
+ * Annan is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Annan is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Annan.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+
+package org.anann.core.queue;
+
+import org.anann.core.events.Event;
+
+/**
+ * Events are processed in the same order they arrived, except that events with the same firing time
+ * are kept sorted by increasing priority value. An event is only moved before the last events queued
+ * when they share its firing time, so insertion and removal take constant time in the usual case.
+ * This is the queue used by entities by default.
+ */
+public class FifoEventsQueue extends RingBuffer {
+    
+    public FifoEventsQueue() {
+        super();
+    }
+    
+    private FifoEventsQueue(FifoEventsQueue queue) {
+        super(queue);
+    }
+
+    @Override
+    public boolean offer(Event event) {
+        if(size > 0) {
+            // Checking last enqueued event time is not greater than the new one (for the sake of consistency)
+            Event lastEvent = get(size - 1);
+            if(lastEvent.getFiringTime() > event.getFiringTime())
+                throw new IllegalStateException("An event with time " + event.getFiringTime() + " was enqueued, but the last" +
+                                                " event enqueued was assigned a greater time " + lastEvent.getFiringTime());
+        }
+        int insertAt = size;
+        while(insertAt > 0) {
+            Event enqueuedEvent = get(insertAt - 1);
+            if((enqueuedEvent.getFiringTime() == event.getFiringTime()) && (enqueuedEvent.getPriority() > event.getPriority()))
+                insertAt--;
+            else
+                break;
+        }
+        if(insertAt == size)
+            addLast(event);
+        else
+            insert(insertAt, event);
+        return true;
+    }
+
+    @Override
+    public Event poll() {
+        return pollFirst();
+    }
+
+    @Override
+    public Event peek() {
+        return (size == 0) ? null : get(0);
+    }
+
+    @Override
+    public FifoEventsQueue copy() {
+        return new FifoEventsQueue(this);
+    }
+
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2013 Luis Rodero-Merino.
+ * 
+ * This file is part of Annan.
+ * 
+ * Annan is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Annan is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Annan.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+
+package org.anann.core.queue;
+
+import org.anann.core.events.Event;
+
+/**
+ * The last event to arrive is the first one to be processed.
+ */
+public class LifoEventsQueue extends RingBuffer {
+    
+    public LifoEventsQueue() {
+        super();
+    }
+    
+    private LifoEventsQueue(LifoEventsQueue queue) {
+        super(queue);
+    }
+
+    @Override
+    public boolean offer(Event event) {
+        addLast(event);
+        return true;
+    }
+
+    @Override
+    public Event poll() {
+        return pollLast();
+    }
+
+    @Override
+    public Event peek() {
+        return (size == 0) ? null : get(size - 1);
+    }
+
+    @Override
+    public LifoEventsQueue copy() {
+        return new LifoEventsQueue(this);
+    }
+
+}
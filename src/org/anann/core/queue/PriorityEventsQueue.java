@@ -0,0 +1,158 @@
+/*
+ * Copyright 2013 Luis Rodero-Merino.
+ * 
+ * This file is part of Annan.
+ * 
+ * Annan is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Annan is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Annan.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+
+package org.anann.core.queue;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.anann.core.events.Event;
+
+/**
+ * Binary heap that serves first the events with greater priority (or, in general, the first
+ * events for the comparator given), regardless of their arrival time. Events that are equal
+ * for the comparator are processed in the same order they arrived.
+ * Insertion and removal take logarithmic time.
+ */
+public class PriorityEventsQueue implements EventsQueue {
+    
+    public static final Comparator<Event> BY_PRIORITY = new Comparator<Event>() {
+        @Override
+        public int compare(Event e1, Event e2) {
+            return (e1.getPriority() > e2.getPriority()) ? -1 : ((e1.getPriority() < e2.getPriority()) ? 1 : 0);
+        }
+    };
+    
+    private static final int INITIAL_CAPACITY = 16;
+    
+    private final Comparator<Event> comparator;
+    private Event[] heap = null;
+    // Arrival number of each event in the heap, to break ties
+    private long[] arrivals = null;
+    private long nextArrival = 0;
+    private int size = 0;
+    
+    public PriorityEventsQueue() {
+        this(BY_PRIORITY);
+    }
+    
+    public PriorityEventsQueue(Comparator<Event> comparator) {
+        if(comparator == null)
+            throw new IllegalArgumentException("Cannot create a " + PriorityEventsQueue.class.getName() + " instance with null comparator");
+        this.comparator = comparator;
+        heap = new Event[INITIAL_CAPACITY];
+        arrivals = new long[INITIAL_CAPACITY];
+    }
+    
+    private PriorityEventsQueue(PriorityEventsQueue queue) {
+        comparator = queue.comparator;
+        heap = queue.heap.clone();
+        arrivals = queue.arrivals.clone();
+        nextArrival = queue.nextArrival;
+        size = queue.size;
+    }
+
+    @Override
+    public boolean offer(Event event) {
+        if(size == heap.length) {
+            heap = Arrays.copyOf(heap, size * 2);
+            arrivals = Arrays.copyOf(arrivals, size * 2);
+        }
+        siftUp(size++, event, nextArrival++);
+        return true;
+    }
+
+    @Override
+    public Event poll() {
+        if(size == 0)
+            return null;
+        Event first = heap[0];
+        size--;
+        Event last = heap[size];
+        long lastArrival = arrivals[size];
+        heap[size] = null;
+        if(size > 0)
+            siftDown(0, last, lastArrival);
+        return first;
+    }
+
+    @Override
+    public Event peek() {
+        return (size == 0) ? null : heap[0];
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(heap, 0, size, null);
+        size = 0;
+    }
+
+    @Override
+    public PriorityEventsQueue copy() {
+        return new PriorityEventsQueue(this);
+    }
+    
+    private boolean before(Event event, long arrival, int index) {
+        int comparison = comparator.compare(event, heap[index]);
+        return (comparison < 0) || ((comparison == 0) && (arrival < arrivals[index]));
+    }
+    
+    private void siftUp(int index, Event event, long arrival) {
+        while(index > 0) {
+            int parent = (index - 1) >>> 1;
+            if(!before(event, arrival, parent))
+                break;
+            heap[index] = heap[parent];
+            arrivals[index] = arrivals[parent];
+            index = parent;
+        }
+        heap[index] = event;
+        arrivals[index] = arrival;
+    }
+    
+    private void siftDown(int index, Event event, long arrival) {
+        int half = size >>> 1;
+        while(index < half) {
+            int child = 2 * index + 1;
+            int right = child + 1;
+            if((right < size) && !before(heap[child], arrivals[child], right))
+                child = right;
+            if(before(event, arrival, child))
+                break;
+            heap[index] = heap[child];
+            arrivals[index] = arrivals[child];
+            index = child;
+        }
+        heap[index] = event;
+        arrivals[index] = arrival;
+    }
+
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2013 Luis Rodero-Merino.
+ * 
+ * This file is part of Annan.
+ * 
+ * Annan is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Annan is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Annan.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+
+package org.anann.core.queue;
+
+import java.util.Arrays;
+
+import org.anann.core.events.Event;
+
+/**
+ * Growable circular array of events, with constant time insertion and removal at both ends.
+ * Base of {@link FifoEventsQueue} and {@link LifoEventsQueue}.
+ */
+abstract class RingBuffer implements EventsQueue {
+    
+    private static final int INITIAL_CAPACITY = 16;
+    
+    // Capacity is always a power of two, so positions are computed with a mask
+    protected Event[] events = null;
+    protected int head = 0;
+    protected int size = 0;
+    
+    RingBuffer() {
+        events = new Event[INITIAL_CAPACITY];
+    }
+    
+    RingBuffer(RingBuffer buffer) {
+        events = buffer.events.clone();
+        head = buffer.head;
+        size = buffer.size;
+    }
+    
+    protected Event get(int index) {
+        return events[(head + index) & (events.length - 1)];
+    }
+    
+    protected void addLast(Event event) {
+        if(size == events.length)
+            grow();
+        events[(head + size) & (events.length - 1)] = event;
+        size++;
+    }
+    
+    /**
+     * Inserts the event at the given position, moving the events after it one position towards the tail.
+     */
+    protected void insert(int index, Event event) {
+        if(size == events.length)
+            grow();
+        int mask = events.length - 1;
+        for(int i = size; i > index; i--)
+            events[(head + i) & mask] = events[(head + i - 1) & mask];
+        events[(head + index) & mask] = event;
+        size++;
+    }
+    
+    protected Event pollFirst() {
+        if(size == 0)
+            return null;
+        Event event = events[head];
+        events[head] = null;
+        head = (head + 1) & (events.length - 1);
+        size--;
+        return event;
+    }
+    
+    protected Event pollLast() {
+        if(size == 0)
+            return null;
+        int last = (head + size - 1) & (events.length - 1);
+        Event event = events[last];
+        events[last] = null;
+        size--;
+        return event;
+    }
+    
+    private void grow() {
+        Event[] newEvents = new Event[events.length * 2];
+        int firstPart = Math.min(size, events.length - head);
+        System.arraycopy(events, head, newEvents, 0, firstPart);
+        System.arraycopy(events, 0, newEvents, firstPart, size - firstPart);
+        events = newEvents;
+        head = 0;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public void clear() {
+        Arrays.fill(events, null);
+        head = 0;
+        size = 0;
+    }
+
+}
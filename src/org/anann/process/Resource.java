@@ -0,0 +1,85 @@
+/*
+ * Copyright 2013 Luis Rodero-Merino.
+ * 
+ * This file is part of Annan.
+ * 
+ * Annan is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Annan is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Annan.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+
+package org.anann.process;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+
+/**
+ * Resource with a fixed number of units that processes acquire and release, see
+ * {@link SimulationProcess#acquire(Resource)}. When units are released and processes are waiting,
+ * the units are handed directly to them in FIFO order.
+ */
+public class Resource {
+    
+    private final int capacity;
+    private int available = 0;
+    private final Queue<SimulationProcess> waiters = new ArrayDeque<SimulationProcess>();
+    
+    public Resource(int capacity) {
+        if(capacity <= 0)
+            throw new IllegalArgumentException("Cannot create a resource with non-positive capacity");
+        this.capacity = capacity;
+        available = capacity;
+    }
+    
+    public int getCapacity() {
+        return capacity;
+    }
+    
+    public int available() {
+        return available;
+    }
+    
+    public int waiting() {
+        return waiters.size();
+    }
+    
+    /**
+     * Gives one unit to the process if there is one available and nobody is waiting before it,
+     * otherwise queues the process.
+     * @return True if the unit was granted.
+     */
+    boolean tryAcquire(SimulationProcess process) {
+        if((available > 0) && waiters.isEmpty()) {
+            available--;
+            return true;
+        }
+        waiters.add(process);
+        return false;
+    }
+    
+    /**
+     * Can be called both from processes and from plain event handlers.
+     */
+    public void release() {
+        SimulationProcess next = waiters.poll();
+        if(next != null) {
+            next.wakeUp();
+            return;
+        }
+        if(available == capacity)
+            throw new IllegalStateException("Cannot release a resource that has all its units available");
+        available++;
+    }
+
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2013 Luis Rodero-Merino.
+ * 
+ * This file is part of Annan.
+ * 
+ * Annan is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Annan is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Annan.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+
+package org.anann.process;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Condition processes can wait for, see {@link SimulationProcess#waitFor(Signal)}. Firing the signal
+ * resumes all the processes waiting for it, at the present simulation time. Their resume events are
+ * scheduled in the order they started waiting, all with the same time and priority, so processes run in
+ * that order only if the events holder fires simultaneous events in the order they were scheduled (as
+ * {@link org.anann.core.events.holder.EHBasedOnIndexedHeap} does). With other holders, such as
+ * {@link org.anann.core.events.holder.EHBasedOnPriorityQueue}, their order is not defined.
+ */
+public class Signal {
+    
+    private List<SimulationProcess> waiters = new ArrayList<SimulationProcess>();
+    
+    void addWaiter(SimulationProcess process) {
+        waiters.add(process);
+    }
+    
+    public int waiting() {
+        return waiters.size();
+    }
+    
+    /**
+     * Can be called both from processes and from plain event handlers.
+     * @return Number of processes resumed.
+     */
+    public int fire() {
+        List<SimulationProcess> resumed = waiters;
+        waiters = new ArrayList<SimulationProcess>();
+        for(SimulationProcess process: resumed)
+            process.wakeUp();
+        return resumed.size();
+    }
+
+}
@@ -0,0 +1,247 @@
+/*
+ * Copyright 2013 Luis Rodero-Merino.
+ * 
+ * This file is part of Annan.
+ * 
+ * Annan is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Annan is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Annan.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+
+package org.anann.process;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.locks.LockSupport;
+
+import org.anann.core.Simulator;
+import org.anann.core.events.Event;
+import org.anann.core.events.EventHandler;
+
+/**
+ * Process-oriented view of the simulation. Subclasses implement {@link #run()} as a sequential
+ * piece of code that calls {@link #hold(long)}, {@link #waitFor(Signal)}, {@link #acquire(Resource)}
+ * and {@link #release(Resource)}, instead of reacting to events.<br>
+ * Each process runs in its own thread (a virtual thread if the JVM supports them, a daemon platform
+ * thread otherwise), but it is the {@link Simulator} events loop which drives it: when the process
+ * must resume, an event is fired and the thread firing it hands control over to the process thread
+ * and parks until the process holds, waits or finishes. So there is exactly one runnable thread at
+ * any moment, and processes can share state with the rest of the simulation without locking.<br>
+ * Processes must be run by simulators that fire events one at a time (i.e., not in parallel mode).
+ * Processes still waiting when the simulation ends are left parked forever; their threads are daemon
+ * so they do not prevent the JVM from exiting.
+ */
+public abstract class SimulationProcess implements EventHandler {
+    
+    public static final int DEFAULT_PROCESS_EVENT_PRIORITY = Event.MINIMUM_EVENT_PRIORITY;
+    private static final int PROCESS_EVENT_CODE = Event.RESERVED_EVENT_CODES_RANGE_MIN + 2;
+    
+    private static final Method OF_VIRTUAL = lookUp(Thread.class, "ofVirtual");
+    private static final Method UNSTARTED = (OF_VIRTUAL == null) ? null : lookUp(OF_VIRTUAL.getReturnType(), "unstarted", Runnable.class);
+    
+    protected Simulator simulator = null;
+    private final Event resumeEvent;
+    private final String name;
+    private Thread thread = null;
+    private volatile Thread resumer = null;
+    private volatile boolean processTurn = false;
+    private boolean started = false;
+    private boolean scheduled = false;
+    private boolean finished = false;
+    private Throwable failure = null;
+    
+    public SimulationProcess(Simulator simulator, String name) {
+        this(simulator, name, DEFAULT_PROCESS_EVENT_PRIORITY);
+    }
+    
+    public SimulationProcess(Simulator simulator, String name, int priority) {
+        if(simulator == null)
+            throw new IllegalArgumentException("Cannot create a " + SimulationProcess.class.getName() + " instance with null simulator");
+        this.simulator = simulator;
+        this.name = name;
+        resumeEvent = new Event(0, PROCESS_EVENT_CODE, this, priority);
+    }
+    
+    /**
+     * Body of the process, it runs in the process own thread.
+     */
+    protected abstract void run();
+    
+    public String getName() {
+        return name;
+    }
+    
+    public boolean isFinished() {
+        return finished;
+    }
+    
+    /**
+     * Schedules the beginning of the process at the given simulation time.
+     * @param startingTime
+     */
+    public void activate(long startingTime) {
+        if(started)
+            throw new IllegalStateException("Process " + name + " was already activated");
+        started = true;
+        resumeAt(startingTime);
+    }
+    
+    /**
+     * Suspends the process during the given simulation time.
+     * @param delay
+     */
+    protected void hold(long delay) {
+        if(delay < 0)
+            throw new IllegalArgumentException("Cannot hold a process during a negative time");
+        checkProcessThread();
+        resumeAt(simulator.time() + delay);
+        yieldControl();
+    }
+    
+    /**
+     * Suspends the process until the signal is fired, see {@link Signal#fire()}.
+     * @param signal
+     */
+    protected void waitFor(Signal signal) {
+        if(signal == null)
+            throw new IllegalArgumentException("Cannot wait for a null signal");
+        checkProcessThread();
+        signal.addWaiter(this);
+        yieldControl();
+    }
+    
+    /**
+     * Takes one unit of the resource, suspending the process until there is one available.
+     * Waiting processes are served in FIFO order.
+     * @param resource
+     */
+    protected void acquire(Resource resource) {
+        if(resource == null)
+            throw new IllegalArgumentException("Cannot acquire a null resource");
+        checkProcessThread();
+        if(!resource.tryAcquire(this))
+            yieldControl();
+    }
+    
+    protected void release(Resource resource) {
+        if(resource == null)
+            throw new IllegalArgumentException("Cannot release a null resource");
+        resource.release();
+    }
+    
+    /**
+     * Schedules the process to resume now, used by signals and resources.
+     */
+    void wakeUp() {
+        resumeAt(simulator.time());
+    }
+    
+    private void resumeAt(long time) {
+        if(scheduled)
+            throw new IllegalStateException("Process " + name + " is already scheduled to resume");
+        scheduled = true;
+        // Not scheduled, so the resume event is not in the holder
+        resumeEvent.setFiringTime(time);
+        simulator.schedule(resumeEvent);
+    }
+    
+    private void checkProcessThread() {
+        if(Thread.currentThread() != thread)
+            throw new IllegalStateException("Only process " + name + " can suspend itself, but it was called from thread " + Thread.currentThread().getName());
+    }
+    
+    @Override
+    public void newEvent(Event event) {
+        
+        if(event != resumeEvent)
+            throw new IllegalStateException("Process " + name + " received an event that is not its own resume event");
+        
+        scheduled = false;
+        if(thread == null) {
+            thread = newThread(new Runnable() {
+                @Override
+                public void run() {
+                    body();
+                }
+            });
+            thread.setName("PROCESS-" + name);
+        }
+        
+        // Handing control over to the process, and waiting for it to give it back
+        resumer = Thread.currentThread();
+        processTurn = true;
+        if(thread.getState() == Thread.State.NEW)
+            thread.start();
+        else
+            LockSupport.unpark(thread);
+        while(processTurn)
+            LockSupport.park(this);
+        
+        if(failure != null) {
+            Throwable throwable = failure;
+            failure = null;
+            if(throwable instanceof RuntimeException)
+                throw (RuntimeException)throwable;
+            if(throwable instanceof Error)
+                throw (Error)throwable;
+            throw new Error("Process " + name + " failed", throwable);
+        }
+    }
+    
+    private void body() {
+        try {
+            run();
+        } catch (Throwable throwable) {
+            failure = throwable;
+        }
+        finished = true;
+        processTurn = false;
+        LockSupport.unpark(resumer);
+    }
+    
+    private void yieldControl() {
+        processTurn = false;
+        LockSupport.unpark(resumer);
+        while(!processTurn)
+            LockSupport.park(this);
+    }
+    
+    /**
+     * Creates a virtual thread when running on a JVM that supports them (looked up by reflection,
+     * so the code still builds for older platforms), a daemon platform thread otherwise.
+     */
+    private static Thread newThread(Runnable runnable) {
+        if(UNSTARTED != null)
+            try {
+                return (Thread)UNSTARTED.invoke(OF_VIRTUAL.invoke(null), runnable);
+            } catch (ReflectiveOperationException exception) {
+                // Falling back to platform threads
+            }
+        Thread thread = new Thread(runnable);
+        thread.setDaemon(true);
+        return thread;
+    }
+    
+    private static Method lookUp(Class<?> type, String name, Class<?>... parameterTypes) {
+        try {
+            return type.getMethod(name, parameterTypes);
+        } catch (NoSuchMethodException exception) {
+            return null;
+        }
+    }
+    
+    public static boolean usesVirtualThreads() {
+        return UNSTARTED != null;
+    }
+
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2013 Luis Rodero-Merino.
+ * 
+ * This file is part of Annan.
+ * 
+ * Annan is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Annan is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Annan.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+
+package org.anann.tests;
+
+import java.util.Random;
+
+import org.anann.core.Simulator;
+import org.anann.core.events.holder.EHBasedOnPriorityQueue;
+import org.anann.process.Resource;
+import org.anann.process.Signal;
+import org.anann.process.SimulationProcess;
+
+/**
+ * Process-oriented example: customers arrive at a bank, queue for one of the tellers and leave.
+ * The bank closes its doors when all customers have been served.
+ */
+public class BankSimulation {
+    
+    static final int CUSTOMERS = 1000;
+    private static final int TELLERS = 3;
+    
+    public static void main(String[] args) {
+        new BankSimulation().run();
+    }
+    
+    protected void run() {
+        
+        Simulator sim = new Simulator(new EHBasedOnPriorityQueue());
+        Resource tellers = new Resource(TELLERS);
+        Signal allServed = new Signal();
+        
+        new Doorman(sim, allServed).activate(0);
+        new CustomersSource(sim, tellers, allServed).activate(0);
+        
+        System.out.println("Starting simulation, " + (SimulationProcess.usesVirtualThreads() ? "virtual" : "platform") + " threads");
+        sim.start();
+        System.out.println("Simulation over, it took " + sim.time() + " units of virtual time");
+    }
+    
+}
+
+class CustomersSource extends SimulationProcess {
+    
+    private static Random random = new Random();
+    private static final int MEAN_ARRIVAL_TIME = 100;
+    private static final int MEAN_SERVICE_TIME = 280;
+    
+    private Resource tellers = null;
+    private Signal allServed = null;
+    private int served = 0;
+    
+    public CustomersSource(Simulator sim, Resource tellers, Signal allServed) {
+        super(sim, "source");
+        this.tellers = tellers;
+        this.allServed = allServed;
+    }
+    
+    @Override
+    protected void run() {
+        for(int customer = 0; customer < BankSimulation.CUSTOMERS; customer++) {
+            new Customer(customer).activate(simulator.time());
+            hold(random.nextInt(2 * MEAN_ARRIVAL_TIME));
+        }
+    }
+    
+    private class Customer extends SimulationProcess {
+        
+        public Customer(int id) {
+            super(CustomersSource.this.simulator, "customer" + id);
+        }
+        
+        @Override
+        protected void run() {
+            acquire(tellers);
+            hold(random.nextInt(2 * MEAN_SERVICE_TIME));
+            release(tellers);
+            if(++served == BankSimulation.CUSTOMERS)
+                allServed.fire();
+        }
+    }
+    
+}
+
+class Doorman extends SimulationProcess {
+    
+    private Signal allServed = null;
+    
+    public Doorman(Simulator sim, Signal allServed) {
+        super(sim, "doorman");
+        this.allServed = allServed;
+    }
+    
+    @Override
+    protected void run() {
+        waitFor(allServed);
+        System.out.println("All customers served at " + simulator.time() + ", closing the bank");
+    }
+    
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2013 Luis Rodero-Merino.
+ * 
+ * This file is part of Annan.
+ * 
+ * Annan is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Annan is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Annan.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+
+package org.anann.tests;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.anann.core.Simulator;
+import org.anann.core.events.Event;
+import org.anann.core.events.EventHandler;
+import org.anann.core.events.holder.EHBasedOnCalendarQueue;
+import org.anann.core.events.holder.EHBasedOnIndexedHeap;
+import org.anann.core.events.holder.EHBasedOnLadderQueue;
+import org.anann.core.events.holder.EHBasedOnPriorityQueue;
+import org.anann.core.events.holder.EHBasedOnRadixHeap;
+import org.anann.core.events.holder.EventsHolder;
+
+/**
+ * Regression check for the current time lane of serial runs: an event at time 0 schedules a zero-delay
+ * event, that goes to the lane, which in turn schedules an event at time 50 while another event waits
+ * at time 100. The lane peeks the holder before each of its events is run, so a holder whose peek
+ * moves its internal state (as the radix heap in monotone mode used to do) returns events out of order.
+ * Events must run at times 0, 0, 50 and 100 with any holder, with or without the lane.
+ */
+public class CurrentTimeLaneCheck {
+    
+    private static final List<Long> EXPECTED = Arrays.asList(0L, 0L, 50L, 100L);
+    
+    public static void main(String[] args) {
+        for(boolean lane: new boolean[]{true, false}) {
+            check(new EHBasedOnRadixHeap(), true, lane);
+            check(new EHBasedOnRadixHeap(), false, lane);
+            check(new EHBasedOnIndexedHeap(), false, lane);
+            check(new EHBasedOnCalendarQueue(), false, lane);
+            check(new EHBasedOnLadderQueue(), false, lane);
+            check(new EHBasedOnPriorityQueue(), false, lane);
+        }
+        System.out.println("Current time lane check passed");
+    }
+    
+    private static void check(EventsHolder holder, boolean monotone, boolean lane) {
+        final Simulator sim = new Simulator(holder);
+        sim.setMonotone(monotone);
+        sim.setCurrentTimeLane(lane);
+        final List<Long> fired = new ArrayList<Long>();
+        EventHandler handler = new EventHandler() {
+            @Override
+            public void newEvent(Event event) {
+                fired.add(sim.time());
+                if(event.getCode() == 0)
+                    sim.schedule(new Event(sim.time(), 1, this, 0));
+                else if(event.getCode() == 1)
+                    sim.schedule(new Event(sim.time() + 50, 2, this, 0));
+            }
+        };
+        sim.schedule(new Event(100, 3, handler, 0));
+        sim.schedule(new Event(0, 0, handler, 0));
+        sim.start();
+        if(!fired.equals(EXPECTED))
+            throw new IllegalStateException(holder.getClass().getSimpleName() + (monotone ? " (monotone)" : "") +
+                                            (lane ? " with" : " without") + " lane fired events at " + fired +
+                                            ", expected " + EXPECTED);
+    }
+    
+}
@@ -81,6 +81,6 @@ class Processor extends Entity {
     }
     
     protected static void sendMsg(Processor p, long time) {
-        p.simulator.schedule(new Event(p.simulator.time() + time, MSG_RECV_EVENT_CODE, p, MSG_RECV_EVENT_PRIORITY));        
+        p.simulator.schedule(p.simulator.newEvent(p.simulator.time() + time, MSG_RECV_EVENT_CODE, p, MSG_RECV_EVENT_PRIORITY));        
     }    
 }
@@ -0,0 +1,281 @@
+/*
+ * Copyright 2013 Luis Rodero-Merino.
+ * 
+ * This file is part of Annan.
+ * 
+ * Annan is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Annan is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Annan.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package org.anann.tests.benchmarks;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.anann.core.events.Event;
+import org.anann.core.events.EventHandler;
+import org.anann.core.events.holder.EventsHolder;
+
+/**
+ * Compares the {@link EventsHolder} implementations using the classic access patterns
+ * to evaluate priority queues for discrete events simulation:
+ * <ul>
+ * <li>Hold: the holder is filled with n events, and then each operation takes the next event
+ * and adds it again with its firing time increased by a random increment, so the holder
+ * size does not change.</li>
+ * <li>Up/down: n events are added to an empty holder and then taken out, repeatedly.</li>
+ * </ul>
+ * Increments are drawn from one of several distributions, all of them with the same mean.
+ * For each holder, size, distribution and pattern, it reports the throughput (operations
+ * per second, an operation being an add or a next, so a hold counts as two) and the bytes
+ * allocated per operation, if the JVM can measure it.
+ * No events are created while measuring, events taken from the holder are added again,
+ * so all allocations come from the holder itself.
+ * <p>
+ * Usage (all arguments are optional, lists are comma separated):
+ * <pre>
+ * HoldBenchmark [-holders EHBasedOnPriorityQueue,...] [-sizes 10,100,...] [-distributions exponential,...]
+ *               [-patterns hold,updown] [-seconds 1]
+ * </pre>
+ * Holders classes are loaded by name (from the {@code org.anann.core.events.holder} package if the name is
+ * not fully qualified), so holders whose dependencies are not available (e.g. Guava) are just skipped.
+ * A holder is not run for bigger sizes once filling it takes too long.
+ */
+public class HoldBenchmark {
+    
+    private static final String HOLDERS_PACKAGE = "org.anann.core.events.holder.";
+    private static final String[] DEFAULT_HOLDERS = { "EHBasedOnPriorityQueue", "EHBasedOnGuavaTreeMultimap", "EHManuallyProgrammed",
+                                                      "EHBasedOnCalendarQueue", "EHBasedOnLadderQueue", "EHBasedOnIndexedHeap",
+                                                      "EHBasedOnRadixHeap", "EHBasedOnPrimitiveArrays", "EHBasedOnDirectBuffers" };
+    private static final int[] DEFAULT_SIZES = { 10, 100, 1000, 10000, 100000, 1000000, 10000000 };
+    private static final long MEAN_INCREMENT = 1000;
+    // Runs longer than this times the measuring time stop the holder from being run with bigger sizes
+    private static final int TOO_SLOW_FACTOR = 20;
+    
+    private static final EventHandler NULL_HANDLER = new EventHandler() {
+        @Override
+        public void newEvent(Event event) {
+        }
+    };
+    
+    enum Distribution {
+        EXPONENTIAL {
+            @Override
+            double sample(Random random) {
+                return -Math.log(1.0 - random.nextDouble());
+            }
+        },
+        UNIFORM {
+            @Override
+            double sample(Random random) {
+                return 2.0 * random.nextDouble();
+            }
+        },
+        BIMODAL {
+            @Override
+            double sample(Random random) {
+                double sample = 0.95238 * random.nextDouble();
+                if(random.nextDouble() < 0.1)
+                    sample += 9.5238 * random.nextDouble();
+                return sample;
+            }
+        },
+        TRIANGULAR {
+            @Override
+            double sample(Random random) {
+                return 1.5 * Math.sqrt(random.nextDouble());
+            }
+        };
+        
+        // Samples have mean 1
+        abstract double sample(Random random);
+        
+        long increment(Random random) {
+            return (long)(MEAN_INCREMENT * sample(random));
+        }
+    }
+    
+    enum Pattern {
+        HOLD, UPDOWN
+    }
+    
+    private List<String> holders = new ArrayList<String>(Arrays.asList(DEFAULT_HOLDERS));
+    private int[] sizes = DEFAULT_SIZES;
+    private List<Distribution> distributions = new ArrayList<Distribution>(Arrays.asList(Distribution.values()));
+    private List<Pattern> patterns = new ArrayList<Pattern>(Arrays.asList(Pattern.values()));
+    private double seconds = 1;
+    
+    public static void main(String[] args) {
+        HoldBenchmark benchmark = new HoldBenchmark();
+        benchmark.parseArgs(args);
+        benchmark.run();
+    }
+    
+    protected void parseArgs(String[] args) {
+        for(int i = 0; i < args.length; i += 2) {
+            if(i + 1 >= args.length)
+                throw new IllegalArgumentException("No value given for argument " + args[i]);
+            String[] values = args[i+1].split(",");
+            if(args[i].equals("-holders")) {
+                holders = Arrays.asList(values);
+            } else if(args[i].equals("-sizes")) {
+                sizes = new int[values.length];
+                for(int j = 0; j < values.length; j++)
+                    sizes[j] = Integer.parseInt(values[j]);
+            } else if(args[i].equals("-distributions")) {
+                distributions = new ArrayList<Distribution>();
+                for(String value: values)
+                    distributions.add(Distribution.valueOf(value.toUpperCase()));
+            } else if(args[i].equals("-patterns")) {
+                patterns = new ArrayList<Pattern>();
+                for(String value: values)
+                    patterns.add(Pattern.valueOf(value.toUpperCase()));
+            } else if(args[i].equals("-seconds")) {
+                seconds = Double.parseDouble(args[i+1]);
+            } else {
+                throw new IllegalArgumentException("Unknown argument " + args[i]);
+            }
+        }
+    }
+    
+    protected void run() {
+        System.out.println(String.format("%-28s %-8s %-12s %10s %15s %12s", "holder", "pattern", "distribution", "size", "ops/s", "bytes/op"));
+        for(String holder: holders) {
+            Class<?> holderClass = holderClass(holder);
+            if(holderClass == null)
+                continue;
+            for(Pattern pattern: patterns) {
+                for(Distribution distribution: distributions) {
+                    for(int size: sizes) {
+                        Result result = measure(holderClass, pattern, distribution, size);
+                        if(result == null) {
+                            System.out.println(String.format("%-28s %-8s %-12s %10d skipping this and bigger sizes, too slow", holderClass.getSimpleName(), pattern, distribution, size));
+                            break;
+                        }
+                        System.out.println(String.format("%-28s %-8s %-12s %10d %15.0f %12s", holderClass.getSimpleName(), pattern, distribution, size,
+                                                         result.opsPerSecond, (result.bytesPerOp < 0) ? "n/a" : String.format("%.2f", result.bytesPerOp)));
+                    }
+                }
+            }
+        }
+    }
+    
+    protected Class<?> holderClass(String holder) {
+        String className = (holder.indexOf('.') < 0) ? HOLDERS_PACKAGE + holder : holder;
+        try {
+            return Class.forName(className);
+        } catch (ClassNotFoundException exception) {
+            System.out.println("Skipping holder " + holder + ", class not found");
+        } catch (NoClassDefFoundError error) {
+            System.out.println("Skipping holder " + holder + ", some dependency is missing: " + error.getMessage());
+        }
+        return null;
+    }
+    
+    protected EventsHolder newHolder(Class<?> holderClass) {
+        try {
+            return (EventsHolder)holderClass.getDeclaredConstructor().newInstance();
+        } catch (InvocationTargetException exception) {
+            throw new IllegalStateException("Could not instantiate events holder " + holderClass.getName(), exception.getCause());
+        } catch (ReflectiveOperationException exception) {
+            throw new IllegalStateException("Could not instantiate events holder " + holderClass.getName(), exception);
+        }
+    }
+    
+    // Returns null if the holder is too slow for this size
+    protected Result measure(Class<?> holderClass, Pattern pattern, Distribution distribution, int size) {
+        Random random = new Random(size);
+        Event[] events = new Event[size];
+        for(int i = 0; i < size; i++)
+            events[i] = new Event(distribution.increment(random), 0, NULL_HANDLER, 0);
+        // First run is a warm up
+        if(run(holderClass, pattern, distribution, events, random) == null)
+            return null;
+        return run(holderClass, pattern, distribution, events, random);
+    }
+    
+    private Result run(Class<?> holderClass, Pattern pattern, Distribution distribution, Event[] events, Random random) {
+        EventsHolder holder = newHolder(holderClass);
+        long durationNanos = (long)(seconds * 1e9);
+        // Filling the holder, or a single up/down cycle, can take much longer than the measuring time for slow holders
+        long deadline = System.nanoTime() + TOO_SLOW_FACTOR * durationNanos;
+        long ops = 0;
+        long allocatedBefore = 0;
+        long start = 0;
+        if(pattern == Pattern.HOLD) {
+            for(int i = 0; i < events.length; i++) {
+                events[i].setFiringTime(distribution.increment(random));
+                holder.add(events[i]);
+                if(((i & 1023) == 0) && (System.nanoTime() > deadline))
+                    return null;
+            }
+            allocatedBefore = allocatedBytes();
+            start = System.nanoTime();
+            do {
+                for(int i = 0; i < 1000; i++) {
+                    Event event = holder.next();
+                    event.setFiringTime(event.getFiringTime() + distribution.increment(random));
+                    holder.add(event);
+                }
+                ops += 2000;
+            } while(System.nanoTime() - start < durationNanos);
+        } else {
+            long time = 0;
+            allocatedBefore = allocatedBytes();
+            start = System.nanoTime();
+            do {
+                for(int i = 0; i < events.length; i++) {
+                    events[i].setFiringTime(time + distribution.increment(random));
+                    holder.add(events[i]);
+                    if(((i & 1023) == 0) && (System.nanoTime() > deadline))
+                        return null;
+                }
+                for(int i = 0; i < events.length; i++)
+                    time = holder.next().getFiringTime();
+                ops += 2 * events.length;
+            } while(System.nanoTime() - start < durationNanos);
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocatedAfter = allocatedBytes();
+        holder.clear();
+        Result result = new Result();
+        result.opsPerSecond = ops / (elapsed / 1e9);
+        result.bytesPerOp = ((allocatedBefore < 0) || (allocatedAfter < 0)) ? -1 : (double)(allocatedAfter - allocatedBefore) / ops;
+        return result;
+    }
+    
+    // Bytes allocated so far by this thread, -1 if the JVM does not support it
+    // (com.sun.management.ThreadMXBean is accessed by reflection, as it is not available in all JVMs)
+    private static long allocatedBytes() {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        try {
+            Method method = Class.forName("com.sun.management.ThreadMXBean").getMethod("getThreadAllocatedBytes", long.class);
+            return (Long)method.invoke(threadMXBean, Thread.currentThread().getId());
+        } catch (Exception exception) {
+            return -1;
+        }
+    }
+    
+    static class Result {
+        double opsPerSecond = 0;
+        double bytesPerOp = -1;
+    }
+
+}
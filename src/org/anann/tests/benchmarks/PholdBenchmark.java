@@ -0,0 +1,379 @@
+/*
+ * Copyright 2013 Luis Rodero-Merino.
+ * 
+ * This file is part of Annan.
+ * 
+ * Annan is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ * 
+ * Annan is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License
+ * along with Annan.  If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package org.anann.tests.benchmarks;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.anann.core.Simulator;
+import org.anann.core.events.Event;
+import org.anann.core.events.EventHandler;
+import org.anann.core.events.dispatcher.EventsDispatcher;
+import org.anann.core.events.dispatcher.ForkJoinEventsDispatcher;
+import org.anann.core.events.dispatcher.ParallelEventsDispatcher;
+import org.anann.core.events.dispatcher.PersistentPoolEventsDispatcher;
+import org.anann.core.events.dispatcher.SerialEventDispatcher;
+import org.anann.core.events.holder.ConcurrentEventsHolder;
+import org.anann.core.events.holder.EHBasedOnMultiQueue;
+import org.anann.core.events.holder.EventsHolder;
+import org.anann.core.pdes.ConservativeSimulation;
+import org.anann.core.pdes.LogicalProcess;
+import org.anann.core.pdes.Snapshotable;
+import org.anann.core.pdes.TimeWarpLogicalProcess;
+import org.anann.core.pdes.TimeWarpSimulation;
+
+/**
+ * PHOLD workload (R. Fujimoto, "Performance of time warp under synthetic workloads", 1990), to
+ * measure the whole simulator (events holder plus dispatcher) end to end.
+ * A fixed population of events circulates among a set of entities. Each time an entity gets an event
+ * it does some dummy work and schedules a new event, for itself or (with a given probability) for
+ * another random entity, after a delay equal to the lookahead plus an exponentially distributed time.
+ * The simulation is run with the serial dispatcher and then with each parallel dispatcher using
+ * from 1 to N threads, reporting the events fired per second of wall clock time in each case.
+ * Parallel dispatchers are given by name: {@code parallel} ({@link ParallelEventsDispatcher}),
+ * {@code persistent} ({@link PersistentPoolEventsDispatcher}), {@code affinity} (the same in affinity
+ * mode, running all events of each entity in the same thread) and {@code forkjoin} ({@link ForkJoinEventsDispatcher}).
+ * Besides, {@code conservative} runs the model with a {@link ConservativeSimulation}, with as many logical
+ * processes as threads, each one with a block of entities (lookahead must be positive then), and
+ * {@code timewarp} does the same with a {@link TimeWarpSimulation}. Finally, {@code relaxed} runs the
+ * simulator in relaxed mode (see {@link Simulator#setRelaxed(int, long)}) with the given skew bound, using a
+ * {@link EHBasedOnMultiQueue} regardless of the holder chosen, and reports the error observed.
+ * <p>
+ * Usage (all arguments are optional):
+ * <pre>
+ * PholdBenchmark [-holder EHBasedOnIndexedHeap] [-entities 1000] [-events 4000] [-remote 0.5]
+ *                [-lookahead 10] [-mean 100] [-work 1000] [-endTime 20000] [-threads 1,2,4,...]
+ *                [-deterministic false] [-window false] [-skew 0]
+ *                [-dispatchers parallel,persistent,affinity,forkjoin,conservative,timewarp,relaxed]
+ * </pre>
+ * The events holder must support {@link EventsHolder#nextSimultaneous()} to be used with the parallel
+ * dispatcher. Parallelism is only obtained from simultaneous events (same firing time and priority),
+ * so lower mean delays (or more events) increase the available parallelism. Events are scheduled
+ * holding a lock shared by all entities, unless the holder is a {@link ConcurrentEventsHolder} or
+ * the simulator runs in deterministic mode (see {@link Simulator#setDeterministic(boolean)}).
+ * With {@code -window true}, parallel dispatchers run windows of events as long as the lookahead
+ * (see {@link Simulator#setLookahead(long)}) instead of batches of simultaneous events.
+ */
+public class PholdBenchmark {
+    
+    private static final String HOLDERS_PACKAGE = "org.anann.core.events.holder.";
+    private static final int PHOLD_EVENT_CODE = Event.RESERVED_EVENT_CODES_RANGE_MIN - 200;
+    private static final int PHOLD_EVENT_PRIORITY = 0;
+    
+    private String holder = "EHBasedOnIndexedHeap";
+    private int entitiesCount = 1000;
+    private int eventsCount = 4000;
+    private double remoteFraction = 0.5;
+    private long lookahead = 10;
+    private double meanDelay = 100;
+    private int work = 1000;
+    private long endTime = 20000;
+    private boolean deterministic = false;
+    private boolean window = false;
+    private long skew = 0;
+    private List<Integer> threads = new ArrayList<Integer>();
+    private String[] dispatchers = { "parallel", "persistent", "affinity", "forkjoin", "conservative", "timewarp", "relaxed" };
+    
+    public static void main(String[] args) {
+        PholdBenchmark benchmark = new PholdBenchmark();
+        benchmark.parseArgs(args);
+        benchmark.run();
+    }
+    
+    protected void parseArgs(String[] args) {
+        for(int processors = 1; processors < Runtime.getRuntime().availableProcessors(); processors *= 2)
+            threads.add(processors);
+        threads.add(Runtime.getRuntime().availableProcessors());
+        for(int i = 0; i < args.length; i += 2) {
+            if(i + 1 >= args.length)
+                throw new IllegalArgumentException("No value given for argument " + args[i]);
+            String value = args[i+1];
+            if(args[i].equals("-holder"))
+                holder = value;
+            else if(args[i].equals("-entities"))
+                entitiesCount = Integer.parseInt(value);
+            else if(args[i].equals("-events"))
+                eventsCount = Integer.parseInt(value);
+            else if(args[i].equals("-remote"))
+                remoteFraction = Double.parseDouble(value);
+            else if(args[i].equals("-lookahead"))
+                lookahead = Long.parseLong(value);
+            else if(args[i].equals("-mean"))
+                meanDelay = Double.parseDouble(value);
+            else if(args[i].equals("-work"))
+                work = Integer.parseInt(value);
+            else if(args[i].equals("-endTime"))
+                endTime = Long.parseLong(value);
+            else if(args[i].equals("-deterministic"))
+                deterministic = Boolean.parseBoolean(value);
+            else if(args[i].equals("-window"))
+                window = Boolean.parseBoolean(value);
+            else if(args[i].equals("-skew"))
+                skew = Long.parseLong(value);
+            else if(args[i].equals("-threads")) {
+                threads = new ArrayList<Integer>();
+                for(String count: value.split(","))
+                    threads.add(Integer.parseInt(count));
+            } else if(args[i].equals("-dispatchers"))
+                dispatchers = value.split(",");
+            else
+                throw new IllegalArgumentException("Unknown argument " + args[i]);
+        }
+        if((entitiesCount <= 0) || (eventsCount <= 0) || (lookahead < 0) || (endTime <= 0))
+            throw new IllegalArgumentException("Entities, events and end time must be positive, lookahead cannot be negative");
+    }
+    
+    protected void run() {
+        System.out.println(String.format("PHOLD: holder %s, %d entities, %d events, remote fraction %.2f, lookahead %d, mean delay %.1f, work %d, end time %d%s%s",
+                                         holder, entitiesCount, eventsCount, remoteFraction, lookahead, meanDelay, work, endTime,
+                                         deterministic ? ", deterministic" : "", window ? ", window" : ""));
+        System.out.println(String.format("%-12s %8s %14s %12s %15s %10s", "dispatcher", "threads", "events", "seconds", "events/s", "speedup"));
+        // Warm up
+        runPhold(new SerialEventDispatcher());
+        Result serial = runPhold(new SerialEventDispatcher());
+        print("serial", 1, serial, serial);
+        for(String dispatcher: dispatchers)
+            for(int threadsCount: threads)
+                if(dispatcher.equals("conservative"))
+                    print(dispatcher, threadsCount, runPholdConservative(threadsCount), serial);
+                else if(dispatcher.equals("timewarp"))
+                    print(dispatcher, threadsCount, runPholdTimeWarp(threadsCount), serial);
+                else if(dispatcher.equals("relaxed"))
+                    print(dispatcher, threadsCount, runPholdRelaxed(threadsCount), serial);
+                else
+                    print(dispatcher, threadsCount, runPhold(newDispatcher(dispatcher, threadsCount)), serial);
+    }
+    
+    protected EventsDispatcher newDispatcher(String name, int threadsCount) {
+        if(name.equals("parallel"))
+            return new ParallelEventsDispatcher(threadsCount);
+        if(name.equals("persistent"))
+            return new PersistentPoolEventsDispatcher(threadsCount);
+        if(name.equals("affinity"))
+            return new PersistentPoolEventsDispatcher(threadsCount, true);
+        if(name.equals("forkjoin"))
+            return new ForkJoinEventsDispatcher(threadsCount);
+        throw new IllegalArgumentException("Unknown dispatcher " + name);
+    }
+    
+    private void print(String dispatcher, int threadsCount, Result result, Result serial) {
+        System.out.println(String.format("%-12s %8d %14d %12.3f %15.0f %10.2f", dispatcher, threadsCount, result.events, result.seconds,
+                                         result.events / result.seconds, (result.events / result.seconds) / (serial.events / serial.seconds)));
+        if(result.details != null)
+            System.out.println("    " + result.details);
+    }
+    
+    protected EventsHolder newHolder() {
+        String className = (holder.indexOf('.') < 0) ? HOLDERS_PACKAGE + holder : holder;
+        try {
+            return (EventsHolder)Class.forName(className).getDeclaredConstructor().newInstance();
+        } catch (InvocationTargetException exception) {
+            throw new IllegalStateException("Could not instantiate events holder " + className, exception.getCause());
+        } catch (ReflectiveOperationException exception) {
+            throw new IllegalStateException("Could not instantiate events holder " + className, exception);
+        }
+    }
+    
+    protected Result runPhold(EventsDispatcher dispatcher) {
+        EventsHolder holder = newHolder();
+        Simulator simulator = new Simulator(holder, dispatcher);
+        simulator.setDeterministic(deterministic);
+        if(window)
+            simulator.setLookahead(lookahead);
+        // Concurrent holders, or deterministic or window runs, need no locking
+        Object scheduleLock = ((holder instanceof ConcurrentEventsHolder) || deterministic || window) ? null : new Object();
+        PholdEntity[] entities = new PholdEntity[entitiesCount];
+        for(int i = 0; i < entitiesCount; i++)
+            entities[i] = new PholdEntity(i, simulator, entities, scheduleLock);
+        for(int i = 0; i < eventsCount; i++) {
+            PholdEntity entity = entities[i % entitiesCount];
+            simulator.schedule(simulator.newEvent(entity.delay(), PHOLD_EVENT_CODE, entity, PHOLD_EVENT_PRIORITY));
+        }
+        long start = System.nanoTime();
+        simulator.start(endTime);
+        Result result = new Result();
+        result.seconds = (System.nanoTime() - start) / 1e9;
+        if(dispatcher instanceof PersistentPoolEventsDispatcher)
+            ((PersistentPoolEventsDispatcher)dispatcher).shutdown();
+        if(dispatcher instanceof ForkJoinEventsDispatcher)
+            ((ForkJoinEventsDispatcher)dispatcher).shutdown();
+        for(PholdEntity entity: entities)
+            result.events += entity.eventsFired;
+        return result;
+    }
+    
+    /**
+     * Runs PHOLD with a {@link ConservativeSimulation}, entities are split in blocks among the logical processes.
+     */
+    protected Result runPholdConservative(int logicalProcessesCount) {
+        if(lookahead <= 0)
+            throw new IllegalArgumentException("Conservative simulation needs a positive lookahead");
+        ConservativeSimulation simulation = new ConservativeSimulation();
+        for(int i = 0; i < logicalProcessesCount; i++)
+            simulation.newLogicalProcess(newHolder());
+        simulation.connectAll(lookahead);
+        PholdEntity[] entities = new PholdEntity[entitiesCount];
+        for(int i = 0; i < entitiesCount; i++) {
+            LogicalProcess logicalProcess = simulation.getLogicalProcesses().get((int)((long)i * logicalProcessesCount / entitiesCount));
+            entities[i] = new PholdEntity(i, logicalProcess, entities, null);
+            simulation.assign(entities[i], logicalProcess);
+        }
+        for(int i = 0; i < eventsCount; i++) {
+            PholdEntity entity = entities[i % entitiesCount];
+            entity.simulator.schedule(entity.simulator.newEvent(entity.delay(), PHOLD_EVENT_CODE, entity, PHOLD_EVENT_PRIORITY));
+        }
+        long start = System.nanoTime();
+        simulation.run(endTime);
+        Result result = new Result();
+        result.seconds = (System.nanoTime() - start) / 1e9;
+        for(PholdEntity entity: entities)
+            result.events += entity.eventsFired;
+        return result;
+    }
+    
+    /**
+     * Runs PHOLD with a {@link TimeWarpSimulation}, entities are split in blocks among the logical processes.
+     * Rollback statistics are printed along with the results.
+     */
+    protected Result runPholdTimeWarp(int logicalProcessesCount) {
+        TimeWarpSimulation simulation = new TimeWarpSimulation();
+        for(int i = 0; i < logicalProcessesCount; i++)
+            simulation.newLogicalProcess(newHolder());
+        PholdEntity[] entities = new PholdEntity[entitiesCount];
+        for(int i = 0; i < entitiesCount; i++) {
+            TimeWarpLogicalProcess logicalProcess = simulation.getLogicalProcesses().get((int)((long)i * logicalProcessesCount / entitiesCount));
+            entities[i] = new PholdEntity(i, logicalProcess, entities, null);
+            simulation.assign(entities[i], logicalProcess);
+        }
+        for(int i = 0; i < eventsCount; i++) {
+            PholdEntity entity = entities[i % entitiesCount];
+            entity.simulator.schedule(entity.simulator.newEvent(entity.delay(), PHOLD_EVENT_CODE, entity, PHOLD_EVENT_PRIORITY));
+        }
+        long start = System.nanoTime();
+        simulation.run(endTime);
+        Result result = new Result();
+        result.seconds = (System.nanoTime() - start) / 1e9;
+        for(PholdEntity entity: entities)
+            result.events += entity.eventsFired;
+        long rolledBack = 0, rollbacks = 0, antiMessages = 0;
+        for(TimeWarpLogicalProcess logicalProcess: simulation.getLogicalProcesses()) {
+            rolledBack += logicalProcess.getEventsRolledBack();
+            rollbacks += logicalProcess.getRollbacks();
+            antiMessages += logicalProcess.getAntiMessagesSent();
+        }
+        result.details = String.format("%d events rolled back in %d rollbacks, %d anti-messages, %d GVT computations",
+                                       rolledBack, rollbacks, antiMessages, simulation.getGvtComputations());
+        return result;
+    }
+    
+    protected Result runPholdRelaxed(int threadsCount) {
+        Simulator simulator = new Simulator(new EHBasedOnMultiQueue(), new SerialEventDispatcher());
+        simulator.setRelaxed(threadsCount, skew);
+        PholdEntity[] entities = new PholdEntity[entitiesCount];
+        for(int i = 0; i < entitiesCount; i++)
+            entities[i] = new PholdEntity(i, simulator, entities, null);
+        for(int i = 0; i < eventsCount; i++) {
+            PholdEntity entity = entities[i % entitiesCount];
+            simulator.schedule(simulator.newEvent(entity.delay(), PHOLD_EVENT_CODE, entity, PHOLD_EVENT_PRIORITY));
+        }
+        long start = System.nanoTime();
+        simulator.start(endTime);
+        Result result = new Result();
+        result.seconds = (System.nanoTime() - start) / 1e9;
+        for(PholdEntity entity: entities)
+            result.events += entity.eventsFired;
+        result.details = String.format("%d inversions, max skew %d", simulator.getInversions(), simulator.getMaxSkew());
+        return result;
+    }
+    
+    static class Result {
+        long events = 0;
+        double seconds = 0;
+        String details = null;
+    }
+    
+    /**
+     * Snapshotable so it can be used in Time Warp simulations, that is why its random numbers
+     * generator is just a seed (SplitMix64), easy to save and restore.
+     */
+    class PholdEntity implements EventHandler, Snapshotable {
+        
+        private final Simulator simulator;
+        private final PholdEntity[] entities;
+        private final Object scheduleLock;
+        private long seed;
+        private long eventsFired = 0;
+        private double workResult = 0;
+        
+        PholdEntity(int id, Simulator simulator, PholdEntity[] entities, Object scheduleLock) {
+            this.simulator = simulator;
+            this.entities = entities;
+            this.scheduleLock = scheduleLock;
+            this.seed = id;
+        }
+        
+        long delay() {
+            return lookahead + (long)(-meanDelay * Math.log(1.0 - nextDouble()));
+        }
+        
+        private double nextDouble() {
+            long z = (seed += 0x9E3779B97F4A7C15L);
+            z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+            z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+            z ^= (z >>> 31);
+            return (z >>> 11) * 0x1.0p-53;
+        }
+        
+        @Override
+        public synchronized Object saveState() {
+            return new long[] { seed, eventsFired, Double.doubleToLongBits(workResult) };
+        }
+        
+        @Override
+        public synchronized void restoreState(Object state) {
+            long[] values = (long[])state;
+            seed = values[0];
+            eventsFired = values[1];
+            workResult = Double.longBitsToDouble(values[2]);
+        }
+
+        // Synchronized, as simultaneous events for the same entity can be fired in parallel
+        @Override
+        public synchronized void newEvent(Event event) {
+            eventsFired++;
+            double result = workResult;
+            for(int i = 0; i < work; i++)
+                result = result * 0.999 + i;
+            workResult = result;
+            PholdEntity target = (nextDouble() < remoteFraction) ? entities[(int)(nextDouble() * entities.length)] : this;
+            Event newEvent = simulator.newEvent(simulator.time() + delay(), PHOLD_EVENT_CODE, target, PHOLD_EVENT_PRIORITY);
+            if(scheduleLock == null) {
+                simulator.schedule(newEvent);
+                return;
+            }
+            synchronized(scheduleLock) {
+                simulator.schedule(newEvent);
+            }
+        }
+    }
+
+}
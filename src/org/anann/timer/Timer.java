@@ -56,16 +56,19 @@ public class Timer implements EventHandler {
         // Registering who waits for time events 
         this.eventsWaiter = eventsWaiter;
         
-        // Suspending any already scheduled time event
-        suspend();
-        
-        // Now, programming new Timer event         
-        if(timerEvent == null)
+        // Now, programming new Timer event. If some time event with the same priority is
+        // already scheduled, it is just moved to the new time
+        if(timerEvent == null) {
             timerEvent = new TimerEvent(startingTime, this, eventPriority);
-        else
+            simulator.schedule(timerEvent);
+        } else if(waitingForTimeEvent && (timerEvent.getPriority() == eventPriority)) {
+            simulator.reschedule(timerEvent, startingTime);
+        } else {
+            // Suspending any already scheduled time event
+            suspend();
             timerEvent.recycle(startingTime, timerEvent.getCode(), this, eventPriority);
-        
-        simulator.schedule(timerEvent);
+            simulator.schedule(timerEvent);
+        }
         
         waitingForTimeEvent = true;
         
@@ -114,9 +117,10 @@ public class Timer implements EventHandler {
         if(event != timerEvent)
             throw new IllegalStateException("A task finished event reached timer, but it is not the proper event");
         
-        // If event is periodical, must be programmed again.
-        if(period > 0){
-            timerEvent.recycle(simulator.time() + period, timerEvent.getCode(), this, timerEvent.getPriority());
+        // If event is periodical, must be programmed again. It has just been fired, so it is
+        // not in the holder and it is scheduled as a new event
+        if(period > 0) {
+            timerEvent.setFiringTime(simulator.time() + period);
             simulator.schedule(timerEvent);
         } else         
             waitingForTimeEvent = false;